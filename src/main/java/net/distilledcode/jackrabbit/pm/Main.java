@@ -10,12 +10,16 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import net.distilledcode.jackrabbit.pm.commands.AbstractCommand;
+import net.distilledcode.jackrabbit.pm.commands.ApplyRepairPlan;
+import net.distilledcode.jackrabbit.pm.commands.BuildHierarchyIndex;
 import net.distilledcode.jackrabbit.pm.commands.ConsistencyCheck;
 import net.distilledcode.jackrabbit.pm.commands.JackrabbitConsistencyCheck;
 import net.distilledcode.jackrabbit.pm.commands.PrintList;
 import net.distilledcode.jackrabbit.pm.commands.Noop;
 import net.distilledcode.jackrabbit.pm.commands.Remove;
+import net.distilledcode.jackrabbit.pm.commands.SampleEstimate;
 import net.distilledcode.jackrabbit.pm.commands.TarOptimization;
+import net.distilledcode.jackrabbit.pm.commands.WorkspaceDiff;
 import ch.qos.logback.classic.Logger;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
 import org.slf4j.LoggerFactory;
@@ -44,9 +48,13 @@ public class Main {
 
     public static void main(final String[] args) {
         final OptionParser parser = new OptionParser();
-        parser.accepts("check", "Run custom consistency check.");
+        parser.accepts("check", "Run custom consistency check, including the checks of --jr-check. " +
+                "Problems are written to --outputFile if given. Every property is loaded, which costs " +
+                "one read per property on PMs that do not store properties in node bundles.");
         parser.accepts("jr-check", "Run Jackrabbit PM consistency check.");
         parser.accepts("optimize", "Run TarPM optimization (only available on TarPM).");
+        parser.accepts("build-index", "Build a hierarchy index of the workspace and write it to the " +
+                "file given by --index.");
         parser.accepts("noop", "Start and stop the repository. May be used to trigger PM " +
                 "specific initialization behaviour.");
         final OptionSpec<String> remove = parser.accepts("remove",
@@ -59,10 +67,58 @@ public class Main {
                 .withRequiredArg()
                 .withValuesSeparatedBy(',')
                 .describedAs("path[, path]");
+        final OptionSpec<File> dryRun = parser.accepts("dry-run",
+                    "Do not repair during --check, write the planned repairs to the given file instead.")
+                .withRequiredArg()
+                .describedAs("plan file").ofType(File.class);
+        final OptionSpec<File> applyPlan = parser.accepts("apply-plan",
+                    "Apply the repairs in a plan file written by --check --dry-run.")
+                .withRequiredArg()
+                .describedAs("plan file").ofType(File.class);
+        final OptionSpec<Integer> batchSize = parser.accepts("batch-size",
+                    "Number of repairs persisted at once.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("repairs")
+                .defaultsTo(1000);
+        final OptionSpec<Integer> optimizeDelay = parser.accepts("optimize-delay",
+                    "Throttling delay passed to the TarPM optimizer.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("delay")
+                .defaultsTo(100);
+        final OptionSpec<Integer> sample = parser.accepts("sample",
+                    "Estimate node count, fanout, size and inconsistency rate from the given number of " +
+                    "randomly chosen pages of node IDs.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("pages");
+        final OptionSpec<Integer> samplePageSize = parser.accepts("sample-page-size",
+                    "Number of consecutive node IDs per sample page.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("nodes")
+                .defaultsTo(1000);
+        final OptionSpec<File> diff = parser.accepts("diff",
+                    "Compare the workspace with the same workspace (or --diff-workspace) of another " +
+                    "repository and write added (+), removed (-) and changed (~) nodes to --outputFile. " +
+                    "The node IDs of both PMs are read twice: once to verify their order, then for the diff.")
+                .withRequiredArg()
+                .describedAs("other repository home").ofType(File.class);
+        final OptionSpec<String> diffWorkspace = parser.accepts("diff-workspace",
+                    "Name of the workspace of the other repository compared by --diff.")
+                .withRequiredArg()
+                .describedAs("workspace name");
+        parser.accepts("diff-properties", "Also compare property values during --diff.");
         final OptionSpec<File> outputFile = parser.accepts("outputFile",
                     "The filename or path of the file, to which output should be written.")
                 .withRequiredArg()
                 .describedAs("path").ofType(File.class);
+        final OptionSpec<File> indexFile = parser.accepts("index",
+                    "Hierarchy index file used by --list to list subtrees without loading bundles. The index is " +
+                    "verified first, which reads all bundles once in storage order.")
+                .withRequiredArg()
+                .describedAs("path").ofType(File.class);
         final OptionSpec<File> repoHome = parser
                 .accepts("repository", "Path to the repository home directory.")
                 .withRequiredArg()
@@ -72,6 +128,49 @@ public class Main {
                 .withOptionalArg()
                 .describedAs("workspace name")
                 .defaultsTo("crx.default");
+        final OptionSpec<Integer> prefetch = parser
+                .accepts("prefetch", "Number of child nodes to load ahead asynchronously during " +
+                        "traversals (0 disables prefetching).")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("depth")
+                .defaultsTo(0);
+        final OptionSpec<Integer> prefetchThreads = parser
+                .accepts("prefetch-threads", "Number of I/O threads used for prefetching.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("threads")
+                .defaultsTo(4);
+        final OptionSpec<File> l2Cache = parser
+                .accepts("l2-cache", "Local scratch directory for a memory-mapped second level NodeState cache.")
+                .withRequiredArg()
+                .ofType(File.class)
+                .describedAs("directory");
+        final OptionSpec<Integer> l2CacheSize = parser
+                .accepts("l2-cache-size", "Maximum size of the second level NodeState cache in MB.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("MB")
+                .defaultsTo(4096);
+        final OptionSpec<Double> existenceFilter = parser
+                .accepts("exists-filter", "Answer existence checks of non-existing node IDs from a Bloom filter " +
+                        "with the given false positive rate, built from a scan of all node IDs.")
+                .withRequiredArg()
+                .ofType(Double.class)
+                .describedAs("false positive rate")
+                .defaultsTo(0.0);
+        final OptionSpec<File> metricsFile = parser
+                .accepts("metrics-file", "File to which the metrics of the running command are written " +
+                        "periodically. The metrics are also available via JMX.")
+                .withRequiredArg()
+                .ofType(File.class)
+                .describedAs("path");
+        final OptionSpec<Integer> metricsInterval = parser
+                .accepts("metrics-interval", "Interval at which the metrics are written to --metrics-file.")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .describedAs("seconds")
+                .defaultsTo(60);
         final OptionSpec<String> log = parser
                 .accepts("log", "Log level: debug, info, warn or error")
                 .withRequiredArg()
@@ -93,11 +192,21 @@ public class Main {
         try {
             final AbstractCommand command;
             if (optionSet.has("check")) {
-                command = new ConsistencyCheck();
+                command = new ConsistencyCheck(outputFile.value(optionSet), dryRun.value(optionSet),
+                        batchSize.value(optionSet));
             } else if (optionSet.has("jr-check")) {
                 command = new JackrabbitConsistencyCheck();
+            } else if (optionSet.hasArgument("apply-plan")) {
+                command = new ApplyRepairPlan(applyPlan.value(optionSet), batchSize.value(optionSet));
+            } else if (optionSet.hasArgument("sample")) {
+                command = new SampleEstimate(sample.value(optionSet), samplePageSize.value(optionSet));
+            } else if (optionSet.hasArgument("diff")) {
+                final String otherWorkspaceName = optionSet.has(diffWorkspace)
+                        ? diffWorkspace.value(optionSet) : workspaceName;
+                command = new WorkspaceDiff(diff.value(optionSet), otherWorkspaceName,
+                        optionSet.has("diff-properties"), outputFile.value(optionSet));
             } else if (optionSet.has("optimize")) {
-                command = new TarOptimization();
+                command = new TarOptimization(optimizeDelay.value(optionSet));
             } else if (optionSet.hasArgument("list")) {
                 final List<String> paths = list.values(optionSet);
                 final File file = outputFile.value(optionSet);
@@ -105,6 +214,8 @@ public class Main {
             } else if (optionSet.hasArgument("remove")) {
                 final List<String> paths = remove.values(optionSet);
                 command = new Remove(paths);
+            } else if (optionSet.has("build-index")) {
+                command = new BuildHierarchyIndex(indexFile.value(optionSet));
             } else if (optionSet.has("noop")) {
                 command = new Noop();
             } else {
@@ -114,9 +225,16 @@ public class Main {
 
             final PMExecutionContext executionContext =
                     PMExecutionContext.create(repositoryHome.getAbsolutePath(), workspaceName);
+            executionContext.setPrefetch(prefetch.value(optionSet), prefetchThreads.value(optionSet));
+            executionContext.setSecondLevelCache(l2Cache.value(optionSet), l2CacheSize.value(optionSet) * 1024L * 1024L);
+            executionContext.setExistenceFilter(existenceFilter.value(optionSet));
+            if (!optionSet.has("build-index")) {
+                executionContext.setHierarchyIndexFile(indexFile.value(optionSet));
+            }
             final String name = command.getClass().getSimpleName();
             final long startTime = System.currentTimeMillis();
             try {
+                executionContext.getMetrics().start(name, metricsFile.value(optionSet), metricsInterval.value(optionSet));
                 LOG.info("Running command {} now.", name);
                 command.execute(executionContext);
             } catch (Exception e) {
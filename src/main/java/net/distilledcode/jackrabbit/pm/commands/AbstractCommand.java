@@ -1,5 +1,8 @@
 package net.distilledcode.jackrabbit.pm.commands;
 
+import com.google.common.collect.AbstractIterator;
+import net.distilledcode.jackrabbit.pm.util.CachingPersistenceManager;
+import net.distilledcode.jackrabbit.pm.util.CommandMetrics;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
 import org.apache.jackrabbit.core.RepositoryImpl;
 import org.apache.jackrabbit.core.id.NodeId;
@@ -16,6 +19,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -37,11 +41,21 @@ public abstract class AbstractCommand {
      */
     private volatile AtomicBoolean alreadyExecuted = new AtomicBoolean(false);
 
+    private CommandMetrics metrics;
+
     public void execute(final PMExecutionContext executionContext) throws Exception {
         checkState(!alreadyExecuted.getAndSet(true), "Already executed");
+        metrics = executionContext.getMetrics();
         doExecute(executionContext);
     }
 
+    /**
+     * @return the metrics of the execution context this command is executed in.
+     */
+    protected CommandMetrics getMetrics() {
+        return metrics;
+    }
+
     protected abstract void doExecute(final PMExecutionContext executionContext) throws Exception;
 
     // ____ UTILITY METHODS ____
@@ -69,6 +83,18 @@ public abstract class AbstractCommand {
         }
     }
 
+    /**
+     * Confirms that a node does not exist before it is treated as missing by a repair.
+     *
+     * @see CachingPersistenceManager#existsInPersistence(NodeId)
+     */
+    protected static boolean isMissing(PersistenceManager pm, NodeId nodeId) throws ItemStateException {
+        if (pm instanceof CachingPersistenceManager) {
+            return !((CachingPersistenceManager) pm).existsInPersistence(nodeId);
+        }
+        return !pm.exists(nodeId);
+    }
+
     protected static NodeState loadNodeState(PersistenceManager pm, NodeId nodeId) {
         if (nodeId == null) {
             return null;
@@ -82,16 +108,86 @@ public abstract class AbstractCommand {
         return null;
     }
 
-    protected static List<NodeState> getChildNodeStates(final PersistenceManager pm, final NodeState nodeState) {
+    /**
+     * Lazily loads the child NodeStates of the given NodeState while iterating,
+     * so that only a bounded number of child NodeStates is held in memory.
+     * Children that cannot be loaded are skipped.
+     *
+     * @see #getChildNodeEntries(PersistenceManager, NodeState)
+     */
+    protected static Iterable<NodeState> getChildNodeStates(final PersistenceManager pm, final NodeState nodeState) {
+        checkArgument(nodeState != null, "NodeState must not be null.");
+        return new Iterable<NodeState>() {
+            @Override
+            public Iterator<NodeState> iterator() {
+                final Iterator<ChildNodeEntry> children = getChildNodeEntries(pm, nodeState).iterator();
+                return new AbstractIterator<NodeState>() {
+                    @Override
+                    protected NodeState computeNext() {
+                        while (children.hasNext()) {
+                            final NodeState child = loadNodeState(pm, children.next().getId());
+                            if (child != null) {
+                                return child;
+                            }
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates the child node entries of the given NodeState. While iterating, the
+     * upcoming children are prefetched in batches of the configured prefetch depth
+     * if the PersistenceManager is a {@link CachingPersistenceManager} with prefetching enabled.
+     * <p/>
+     * The entries are a snapshot ({@code NodeState.getChildNodeEntries()} returns a
+     * copy), i.e. the NodeState may be modified during the iteration.
+     */
+    protected static Iterable<ChildNodeEntry> getChildNodeEntries(final PersistenceManager pm, final NodeState nodeState) {
         checkArgument(nodeState != null, "NodeState must not be null.");
         final List<ChildNodeEntry> children = nodeState.getChildNodeEntries();
-        final List<NodeState> childNodeStates = new ArrayList<NodeState>(children.size());
+        if (!(pm instanceof CachingPersistenceManager) || ((CachingPersistenceManager) pm).getPrefetchDepth() == 0) {
+            return children;
+        }
+        final CachingPersistenceManager cpm = (CachingPersistenceManager) pm;
+        final int batchSize = cpm.getPrefetchDepth();
+        return new Iterable<ChildNodeEntry>() {
+            @Override
+            public Iterator<ChildNodeEntry> iterator() {
+                return new AbstractIterator<ChildNodeEntry>() {
+                    private int position;
+
+                    private int prefetchedUpTo;
+
+                    @Override
+                    protected ChildNodeEntry computeNext() {
+                        if (position >= children.size()) {
+                            return endOfData();
+                        }
+                        if (position + batchSize / 2 >= prefetchedUpTo && prefetchedUpTo < children.size()) {
+                            final int end = Math.min(children.size(), prefetchedUpTo + batchSize);
+                            prefetch(cpm, children.subList(prefetchedUpTo, end));
+                            prefetchedUpTo = end;
+                        }
+                        return children.get(position++);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Asks the {@link CachingPersistenceManager} to asynchronously load the given
+     * child NodeStates ahead of their use.
+     */
+    private static void prefetch(final CachingPersistenceManager pm, final List<ChildNodeEntry> children) {
+        final List<NodeId> childIds = new ArrayList<NodeId>(children.size());
         for (final ChildNodeEntry childNodeEntry : children) {
-            final NodeState child = loadNodeState(pm, childNodeEntry.getId());
-            if (child == null) continue;
-            childNodeStates.add(child);
+            childIds.add(childNodeEntry.getId());
         }
-        return childNodeStates;
+        pm.prefetch(childIds);
     }
 
     protected static NodeState getNodeState(PersistenceManager pm, NodeState parentState, String relPath)
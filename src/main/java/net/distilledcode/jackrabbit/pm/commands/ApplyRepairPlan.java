@@ -0,0 +1,107 @@
+package net.distilledcode.jackrabbit.pm.commands;
+
+import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import net.distilledcode.jackrabbit.pm.util.RepairPlan;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NoSuchItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Command to apply the repairs of a {@link RepairPlan} written by a dry-run of
+ * {@link ConsistencyCheck}. The repairs are persisted in batches and no
+ * traversal of the content is necessary. Repairs that no longer apply are skipped,
+ * e.g. if the child has been restored or moved since the plan was written.
+ */
+public class ApplyRepairPlan extends AbstractCommand {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApplyRepairPlan.class);
+
+    private final File planFile;
+
+    private final int batchSize;
+
+    public ApplyRepairPlan(final File planFile, final int batchSize) {
+        checkArgument(planFile != null && planFile.isFile(), "Repair plan file required");
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        this.planFile = planFile;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected void doExecute(final PMExecutionContext executionContext) throws Exception {
+        LOG.info("Applying repair plan {}", planFile.getAbsolutePath());
+        final PersistenceManager pm = executionContext.getCachingPersistenceManager();
+        final ChangeLog changeLog = new ChangeLog();
+        getMetrics().setBatchSize(batchSize);
+        int pending = 0;
+        long applied = 0;
+        long skipped = 0;
+        final Iterator<RepairPlan.Repair> repairs = RepairPlan.read(planFile);
+        while (repairs.hasNext()) {
+            final RepairPlan.Repair repair = repairs.next();
+            getMetrics().nodeProcessed(repair.getNodeId().toString());
+            final NodeState nodeState = getPendingNodeState(pm, changeLog, repair.getNodeId());
+            if (nodeState == null || !nodeState.hasChildNodeEntry(repair.getTargetId())
+                    || !isDetached(pm, changeLog, nodeState, repair.getTargetId())) {
+                LOG.info("Skipping repair that no longer applies: {}", repair);
+                skipped++;
+                continue;
+            }
+            nodeState.removeChildNodeEntry(repair.getTargetId());
+            changeLog.modified(nodeState);
+            if (++pending >= getMetrics().getBatchSize()) {
+                persist(pm, changeLog);
+                getMetrics().batchCommitted();
+                applied += pending;
+                pending = 0;
+                LOG.info("Persisted {} repairs", applied);
+            }
+        }
+        persist(pm, changeLog);
+        applied += pending;
+        LOG.info("Applied {} repairs, skipped {}", applied, skipped);
+    }
+
+    /**
+     * Returns the NodeState from the pending changes if it has been modified in the
+     * current batch, so that earlier repairs of the same node are not lost.
+     */
+    private static NodeState getPendingNodeState(PersistenceManager pm, ChangeLog changeLog, NodeId id)
+            throws NoSuchItemStateException {
+        final ItemState state = changeLog.get(id);
+        if (state != null) {
+            return (NodeState) state;
+        }
+        return loadNodeState(pm, id);
+    }
+
+    /**
+     * Checks that the child still needs to be detached, i.e. it is missing, or it
+     * is neither a child nor a share of the given parent and its own parent still
+     * references it, like {@code ConsistencyCheck} requires before planning the
+     * repair. The child may have been restored or moved since the plan was written.
+     */
+    private static boolean isDetached(PersistenceManager pm, ChangeLog changeLog, NodeState parent, NodeId childId)
+            throws ItemStateException {
+        if (isMissing(pm, childId)) {
+            return true;
+        }
+        final NodeState child = loadNodeState(pm, childId);
+        if (child == null || ConsistencyCheck.isParent(parent, child)) {
+            return false;
+        }
+        final NodeState otherParent = getPendingNodeState(pm, changeLog, child.getParentId());
+        return otherParent != null && otherParent.hasChildNodeEntry(childId);
+    }
+}
@@ -0,0 +1,62 @@
+package net.distilledcode.jackrabbit.pm.commands;
+
+import net.distilledcode.jackrabbit.pm.util.HierarchyIndex;
+import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Command to build a {@link HierarchyIndex} of the workspace and write it to a file.
+ * The bundles are read once in the order of {@code getAllNodeIds}, i.e. in storage
+ * order for bundle persistence managers.
+ */
+public class BuildHierarchyIndex extends AbstractCommand {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BuildHierarchyIndex.class);
+
+    private final File indexFile;
+
+    public BuildHierarchyIndex(final File indexFile) {
+        checkArgument(indexFile != null, "Index file required");
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    protected void doExecute(final PMExecutionContext executionContext) throws Exception {
+        final PersistenceManager pm = executionContext.getPersistenceManager();
+        checkState(pm instanceof IterablePersistenceManager, "IterablePersistenceManager required");
+        final IterablePersistenceManager ipm = (IterablePersistenceManager) pm;
+
+        final HierarchyIndex.Builder builder = new HierarchyIndex.Builder();
+        for (final NodeId id : ipm.getAllNodeIds(null, 0)) {
+            builder.addId(id);
+        }
+
+        final long startTime = System.currentTimeMillis();
+        long nodesProcessed = 0;
+        for (final NodeId id : ipm.getAllNodeIds(null, 0)) {
+            getMetrics().nodeProcessed(id.toString());
+            final NodeState nodeState = loadNodeState(pm, id);
+            if (nodeState != null) {
+                builder.addNode(nodeState);
+            }
+            if (++nodesProcessed % 100000 == 0) {
+                final long perNode = (System.currentTimeMillis() - startTime) / (nodesProcessed / 1000);
+                LOG.info("indexed {} nodes ({}ms/1k nodes)", nodesProcessed, perNode);
+            }
+        }
+
+        final HierarchyIndex index = builder.build();
+        index.write(indexFile);
+        LOG.info("Wrote hierarchy index of {} nodes to {}", index.getNodeCount(), indexFile.getAbsolutePath());
+    }
+}
@@ -1,8 +1,11 @@
 package net.distilledcode.jackrabbit.pm.commands;
 
 import com.google.common.collect.Sets;
+import net.distilledcode.jackrabbit.pm.util.ConsistencyReport;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import net.distilledcode.jackrabbit.pm.util.RepairPlan;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
@@ -10,15 +13,31 @@ import org.apache.jackrabbit.core.state.ChildNodeEntry;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.spi.Name;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Command to run a consistency check on the given PersistenceManager.
+ * <p/>
+ * Besides checking that parent and child node references agree, the traversal
+ * covers the bundle checks of Jackrabbit's {@code checkConsistency}: missing
+ * child nodes and missing or unloadable properties. All problems are collected
+ * in a {@link ConsistencyReport}.
+ * <p/>
+ * Repairs are persisted in batches while the check runs. In dry-run mode the
+ * repairs are not applied but written to a {@link RepairPlan} file, which can
+ * later be applied with {@link ApplyRepairPlan}.
  */
 public class ConsistencyCheck extends AbstractCommand {
     /**
@@ -30,30 +49,78 @@ public class ConsistencyCheck extends AbstractCommand {
 
     private long startTime;
 
+    private final File planFile;
+
+    private final int batchSize;
+
+    private final File reportFile;
+
+    private RepairPlan.Writer plan;
+
+    private ConsistencyReport report;
+
+    private int pendingRepairs;
+
+    private long repairCount;
+
+    /**
+     * @param reportFile file to write the problems to, {@code null} to only log them.
+     * @param planFile file to write planned repairs to (dry-run), {@code null} to apply repairs directly.
+     * @param batchSize number of repairs after which the pending repairs are persisted,
+     *                  may be changed at runtime via JMX.
+     */
+    public ConsistencyCheck(final File reportFile, final File planFile, final int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        this.reportFile = reportFile;
+        this.planFile = planFile;
+        this.batchSize = batchSize;
+    }
+
     @Override
     protected void doExecute(final PMExecutionContext executionContext) throws Exception {
         startTime = System.currentTimeMillis();
+        getMetrics().setBatchSize(batchSize);
         final ChangeLog changeLog = new ChangeLog();
         final IterablePersistenceManager persistenceManager = executionContext.getCachingPersistenceManager();
-        checkChildren(persistenceManager, getRootNodeState(persistenceManager), changeLog);
-        persist(persistenceManager, changeLog); // TODO: support dry-run
-        //checkPMConsistency(persistenceManager); // TODO: support dry-run, re-implement equivalent functionality
+        if (planFile != null) {
+            LOG.info("Dry-run: repairs are written to {}", planFile.getAbsolutePath());
+            plan = RepairPlan.createWriter(planFile);
+        }
+        report = new ConsistencyReport(reportFile);
+        try {
+            checkChildren(persistenceManager, getRootNodeState(persistenceManager), changeLog);
+            persistRepairs(persistenceManager, changeLog);
+        } finally {
+            report.close();
+            if (plan != null) {
+                plan.close();
+            }
+        }
+        if (plan != null) {
+            LOG.info("Planned {} repairs", plan.getCount());
+        } else {
+            LOG.info("Persisted {} repairs", repairCount);
+        }
     }
 
     private void checkChildren(PersistenceManager pm, NodeState startState, ChangeLog changeLog) throws ItemStateException, RepositoryException {
         final Set<NodeId> allNodeIds = getAllNodeIds(pm);
         final int nodeCount = allNodeIds.size();
         LOG.info("There are {} node IDs in the index", nodeCount);
-        checkChildren(pm, startState, changeLog, allNodeIds, nodeCount);
+        checkChildren(pm, startState, getPath(pm, startState), changeLog, allNodeIds, nodeCount);
         // TODO: handle remaining (orphaned) node ids.
-        // TODO: implement basic checks as in jackrabbit (during the same traversal)
     }
 
-    private void checkChildren(PersistenceManager pm, NodeState parentState, ChangeLog changeLog, Set<NodeId> allNodeIds, int nodeCount) throws ItemStateException {
+    /**
+     * The path is passed down instead of being determined via {@link #getPath}, which
+     * follows the parent IDs and fails for nodes whose parent ID is inconsistent.
+     */
+    private void checkChildren(PersistenceManager pm, NodeState parentState, String path, ChangeLog changeLog,
+                               Set<NodeId> allNodeIds, int nodeCount) throws ItemStateException {
         if (!parentState.isNode()) {
             return;
         }
-        final String path = getPath(pm, parentState);
+        getMetrics().nodeProcessed(path);
         final long nodesProcessed = processedNodeCounter.getAndIncrement();
         if (nodesProcessed % 10000 == 0 && nodesProcessed != 0) {
             long timeTaken = System.currentTimeMillis() - startTime;
@@ -62,36 +129,127 @@ public class ConsistencyCheck extends AbstractCommand {
         }
 
         allNodeIds.remove(parentState.getNodeId());
+        checkProperties(pm, parentState, path, report);
+
+        for (final ChildNodeEntry childNodeEntry : getChildNodeEntries(pm, parentState)) {
+            final NodeState childNodeState = loadChild(pm, parentState, childNodeEntry, path, report);
+            if (childNodeState == null) {
+                if (isMissing(pm, childNodeEntry.getId())) {
+                    LOG.info("repairing {} by removing missing child {}", parentState.getId(), childNodeEntry.getId());
+                    removeChildNodeEntry(pm, parentState, childNodeEntry.getId(), changeLog);
+                } else if (!pm.exists(childNodeEntry.getId())) {
+                    LOG.warn("child {} of {} exists, but is not listed by getAllNodeIds; not repairing",
+                            childNodeEntry.getId(), path);
+                }
+                continue;
+            }
+            final String childPath = path + "/" + childNodeEntry.getName().getLocalName();
+            if (assertParent(pm, parentState, path, childNodeState, childPath, changeLog)) {
+                // the subtree is checked when its actual parent is traversed
+                continue;
+            }
+            checkChildren(pm, childNodeState, childPath, changeLog, allNodeIds, nodeCount);
+        }
+    }
 
-        for (final NodeState childNodeState : getChildNodeStates(pm, parentState)) {
-            final String childPath = getPath(pm, childNodeState);
-            assertParent(pm, parentState, childNodeState, changeLog, childPath);
-            checkChildren(pm, childNodeState, changeLog, allNodeIds, nodeCount);
+    /**
+     * Loads the child NodeState referenced by a child node entry and reports it if
+     * it is missing or cannot be loaded.
+     *
+     * @return the child NodeState or {@code null} if it cannot be loaded.
+     */
+    static NodeState loadChild(PersistenceManager pm, NodeState parent, ChildNodeEntry childNodeEntry,
+                               String parentPath, ConsistencyReport report) {
+        try {
+            return pm.load(childNodeEntry.getId());
+        } catch (NoSuchItemStateException e) {
+            report.report(ConsistencyReport.Problem.MISSING_CHILD, parent.getNodeId(),
+                    parentPath + " references missing child " + childNodeEntry.getName() + " (" + childNodeEntry.getId() + ")");
+        } catch (ItemStateException e) {
+            report.report(ConsistencyReport.Problem.UNLOADABLE_NODE, childNodeEntry.getId(),
+                    "child " + childNodeEntry.getName() + " of " + parentPath + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Reports properties that are listed in the NodeState but cannot be loaded.
+     * <p/>
+     * Every property is loaded separately and is not cached by the CachingPersistenceManager.
+     * Bundle PersistenceManagers serve these loads from the bundle just loaded for the
+     * node, other PersistenceManagers read each property from the persistence.
+     *
+     * @return the PropertyStates that could be loaded.
+     */
+    static List<PropertyState> checkProperties(PersistenceManager pm, NodeState nodeState, String path,
+                                               ConsistencyReport report) {
+        final List<PropertyState> propertyStates = new ArrayList<PropertyState>();
+        for (final Name propertyName : nodeState.getPropertyNames()) {
+            final PropertyId propertyId = new PropertyId(nodeState.getNodeId(), propertyName);
+            try {
+                propertyStates.add(pm.load(propertyId));
+            } catch (NoSuchItemStateException e) {
+                report.report(ConsistencyReport.Problem.MISSING_PROPERTY, propertyId, path + " references missing property " + propertyName);
+            } catch (ItemStateException e) {
+                report.report(ConsistencyReport.Problem.UNLOADABLE_PROPERTY, propertyId, path + ": " + e.getMessage());
+            }
         }
+        return propertyStates;
+    }
+
+    static boolean isParent(NodeState parent, NodeState child) {
+        return parent.getNodeId().equals(child.getParentId()) || child.containsShare(parent.getNodeId());
     }
 
-    private void assertParent(PersistenceManager pm, NodeState parent, NodeState child, ChangeLog changeLog, String path) throws ItemStateException {
-        if (!parent.getNodeId().equals(child.getParentId()) && !child.containsShare(parent.getNodeId())) {
-            LOG.warn("mismatching parent ids: {} claims to have child {}",
-                    getPath(pm, parent), path, getPath(pm, pm.load(child.getParentId())));
+    /**
+     * Reports a child whose parent ID does not point back to the given parent and removes
+     * the child node entry if the child's actual parent references it.
+     *
+     * @return {@code true} if the child node entry has been removed or a removal has been planned.
+     */
+    private boolean assertParent(PersistenceManager pm, NodeState parent, String parentPath, NodeState child,
+                                 String childPath, ChangeLog changeLog) throws ItemStateException {
+        if (!isParent(parent, child)) {
+            report.report(ConsistencyReport.Problem.PARENT_MISMATCH, child.getNodeId(),
+                    parentPath + " claims to have child " + childPath + " with parent ID " + child.getParentId());
             try {
                 final NodeState otherParent = pm.load(child.getParentId());
                 if (!otherParent.hasChildNodeEntry(child.getNodeId())) {
                     LOG.warn("orphaned child's parent {} does not reference the child {}", otherParent.getId(), child.getId());
                 } else {
                     LOG.info("repairing {} by removing child {}", parent.getId(), child.getId());
-                    parent.removeChildNodeEntry(child.getNodeId());
-                    changeLog.modified(parent);
+                    removeChildNodeEntry(pm, parent, child.getNodeId(), changeLog);
+                    return true;
                 }
             } catch (ItemStateException e) {
                 LOG.error("boom", e);
             }
         }
+        return false;
     }
 
 
-    private void checkPMConsistency(PersistenceManager persistenceManager) {
-        persistenceManager.checkConsistency(null, true, true);
+    private void removeChildNodeEntry(PersistenceManager pm, NodeState parent, NodeId childId, ChangeLog changeLog)
+            throws ItemStateException {
+        if (plan != null) {
+            plan.removeChildNodeEntry(parent.getNodeId(), childId);
+            return;
+        }
+        parent.removeChildNodeEntry(childId);
+        changeLog.modified(parent);
+        if (++pendingRepairs >= getMetrics().getBatchSize()) {
+            persistRepairs(pm, changeLog);
+        }
+    }
+
+    private void persistRepairs(PersistenceManager pm, ChangeLog changeLog) throws ItemStateException {
+        if (pendingRepairs > 0) {
+            persist(pm, changeLog);
+            repairCount += pendingRepairs;
+            getMetrics().batchCommitted();
+            LOG.info("Persisted {} repairs (total: {})", pendingRepairs, repairCount);
+            pendingRepairs = 0;
+        }
     }
 
     private Set<NodeId> getAllNodeIds(PersistenceManager pm) throws RepositoryException, ItemStateException {
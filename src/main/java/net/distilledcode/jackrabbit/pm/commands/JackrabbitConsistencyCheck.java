@@ -2,6 +2,11 @@ package net.distilledcode.jackrabbit.pm.commands;
 
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
 
+/**
+ * Command to run the PersistenceManager's own consistency check, fixing any
+ * problems it finds. {@link ConsistencyCheck} covers the same bundle checks
+ * during its traversal.
+ */
 public class JackrabbitConsistencyCheck extends AbstractCommand {
 
     @Override
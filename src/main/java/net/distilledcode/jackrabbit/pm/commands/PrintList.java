@@ -1,7 +1,9 @@
 package net.distilledcode.jackrabbit.pm.commands;
 
 import com.google.common.collect.Sets;
+import net.distilledcode.jackrabbit.pm.util.HierarchyIndex;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import org.apache.jackrabbit.core.RepositoryImpl;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
@@ -23,6 +25,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 /**
  * Command to list all content paths. By default the paths are logged,
  * optionally they can be written to a specified file instead.
+ * <p/>
+ * If a {@link HierarchyIndex} is available and matches the workspace, the
+ * paths are listed from the index instead of traversing the bundles in path order.
  */
 public class PrintList extends AbstractCommand {
 
@@ -50,10 +55,20 @@ public class PrintList extends AbstractCommand {
         }
 
         final IterablePersistenceManager pm = executionContext.getCachingPersistenceManager();
-        final NodeState rootNodeState = getRootNodeState(pm);
+        final HierarchyIndex index = executionContext.getHierarchyIndex();
         for (final String path : paths) {
             checkArgument(path.startsWith("/"), "Path must start with a forward slash (/).");
-            final NodeState nodeState = getNodeState(pm, rootNodeState, path.substring(1));
+            if (index != null) {
+                final NodeId nodeId = index.resolve(RepositoryImpl.ROOT_NODE_ID, path.substring(1));
+                if (nodeId == null) {
+                    LOG.warn("No node found for path {}", path);
+                } else {
+                    LOG.info("Listing {} nodes under {}", index.getSubtreeSize(nodeId), path);
+                    listChildren(index, nodeId);
+                }
+                continue;
+            }
+            final NodeState nodeState = getNodeState(pm, getRootNodeState(pm), path.substring(1));
             if (nodeState == null) {
                 LOG.warn("No node found for path {}", path);
             } else {
@@ -74,14 +89,27 @@ public class PrintList extends AbstractCommand {
         }
 
         final String path = getPath(pm, parentState);
+        getMetrics().nodeProcessed(path);
+        print(path);
+        for (final NodeState childNodeState : getChildNodeStates(pm, parentState)) {
+            listChildren(pm, childNodeState);
+        }
+    }
+
+    private void listChildren(final HierarchyIndex index, final NodeId parentId) {
+        final String path = index.getPath(parentId);
+        getMetrics().nodeProcessed(path);
+        print(path);
+        for (final NodeId childId : index.getChildIds(parentId)) {
+            listChildren(index, childId);
+        }
+    }
+
+    private void print(final String path) {
         if (output != null) {
             output.println(path);
         } else {
             LOG.info(path);
         }
-
-        for (final NodeState childNodeState : getChildNodeStates(pm, parentState)) {
-            listChildren(pm, childNodeState);
-        }
     }
 }
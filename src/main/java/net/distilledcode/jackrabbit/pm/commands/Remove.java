@@ -3,7 +3,6 @@ package net.distilledcode.jackrabbit.pm.commands;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
@@ -38,6 +37,7 @@ public class Remove extends AbstractCommand {
     @Override
     protected void doExecute(final PMExecutionContext executionContext) throws Exception {
         final PersistenceManager persistenceManager = executionContext.getPersistenceManager();
+        getMetrics().setBatchSize(SAVE_THRESHOLD);
         for (final String path : paths) {
             for (final NodeState startNodeState : expandPath(persistenceManager, path)) {
                 LOG.info("Recursively deleting {}", getPath(persistenceManager, startNodeState));
@@ -68,10 +68,12 @@ public class Remove extends AbstractCommand {
             } else {
                 final String parentPath = Text.getRelativeParent(relPath, 1);
                 final NodeState parentState = getNodeState(pm, rootNodeState, parentPath);
-                final List<NodeState> childNodeStates = getChildNodeStates(pm, parentState);
-                final Iterable<NodeState> filteredChildren = Iterables.filter(childNodeStates, namePredicate(pm, filter));
-                LOG.info("Found {} NodeStates at /{}", childNodeStates.size(), parentPath);
-                return Lists.newArrayList(filteredChildren);
+                if (parentState == null) {
+                    LOG.info("NodeState /{} does not exist; skipping", parentPath);
+                    return Collections.emptyList();
+                }
+                LOG.info("Matching child NodeStates of /{}", parentPath);
+                return Iterables.filter(getChildNodeStates(pm, parentState), namePredicate(pm, filter));
             }
         }
     }
@@ -147,12 +149,13 @@ public class Remove extends AbstractCommand {
         for (final NodeState child : getChildNodeStates(pm, nodeState)) {
             final List<NodeState> toDelete = internalRecursiveDelete(pm, child);
             nodeStatesToDelete.addAll(toDelete);
-            if (nodeStatesToDelete.size() > SAVE_THRESHOLD) {
+            if (nodeStatesToDelete.size() > getMetrics().getBatchSize()) {
                 persist(pm, nodeState, nodeStatesToDelete);
                 nodeStatesToDelete.clear();
             }
         }
         nodeStatesToDelete.add(nodeState);
+        getMetrics().nodeProcessed(null);
         return nodeStatesToDelete;
     }
 
@@ -167,6 +170,9 @@ public class Remove extends AbstractCommand {
         }
         pm.store(changeLog);
         deletedCount += childNodeStatesToDelete.size();
-        LOG.info("Persisted {} (total: {}) deleted nodes under {}", childNodeStatesToDelete.size(), deletedCount, getPath(pm, nodeState));
+        final String path = getPath(pm, nodeState);
+        getMetrics().setCurrentPath(path);
+        getMetrics().batchCommitted();
+        LOG.info("Persisted {} (total: {}) deleted nodes under {}", childNodeStatesToDelete.size(), deletedCount, path);
     }
 }
@@ -0,0 +1,285 @@
+package net.distilledcode.jackrabbit.pm.commands;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import net.distilledcode.jackrabbit.pm.util.ConsistencyReport;
+import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.Serializer;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Command to estimate the size and the inconsistency rate of a workspace from
+ * a random sample of nodes instead of a full traversal.
+ * <p/>
+ * Each sample is a page of consecutive node IDs read via {@code getAllNodeIds}
+ * from a random starting ID. As node IDs are random UUIDs, the density of IDs
+ * within a page yields an estimate of the total node count. The few well-known,
+ * non-random IDs (e.g. the root node) are not accounted for.
+ * <p/>
+ * Sampled nodes are checked like in {@link ConsistencyCheck} (without repairs):
+ * the parent must reference the node, child node entries must exist and the
+ * properties must be loadable. All estimates are reported with 95% confidence
+ * intervals.
+ * <p/>
+ * Binary values held in the data store are not part of the persistence, their
+ * size is estimated separately. Binaries referenced by several properties are
+ * counted once per reference.
+ */
+public class SampleEstimate extends AbstractCommand {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleEstimate.class);
+
+    /**
+     * Quantile of the standard normal distribution for 95% confidence intervals.
+     */
+    private static final double Z = 1.96;
+
+    private static final double ID_SPACE = Math.pow(2, 64);
+
+    private final int pages;
+
+    private final int pageSize;
+
+    public SampleEstimate(final int pages, final int pageSize) {
+        checkArgument(pages > 1, "At least two sample pages are required");
+        checkArgument(pageSize > 1, "Sample page size must be greater than one");
+        this.pages = pages;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    protected void doExecute(final PMExecutionContext executionContext) throws Exception {
+        final IterablePersistenceManager pm = executionContext.getCachingPersistenceManager();
+        final ConsistencyReport report = new ConsistencyReport(null);
+        final Random random = new Random();
+
+        final double[] pageGaps = new double[pages];
+        final double[] pageSpans = new double[pages];
+        int sampledPages = 0;
+        final Statistic fanout = new Statistic();
+        final Statistic bytes = new Statistic();
+        final Statistic dataStoreBytes = new Statistic();
+        long sampledNodes = 0;
+        long inconsistentNodes = 0;
+
+        try {
+            for (int page = 0; page < pages; page++) {
+                final NodeId start = new NodeId(random.nextLong(), random.nextLong());
+                final List<NodeId> ids = Lists.newArrayList(pm.getAllNodeIds(start, pageSize));
+                if (ids.size() < 2) {
+                    // near the end of the ID space
+                    continue;
+                }
+                final NodeId first = ids.get(0);
+                final NodeId last = ids.get(ids.size() - 1);
+                pageGaps[sampledPages] = ids.size() - 1;
+                pageSpans[sampledPages] = toUnsignedDouble(last.getMostSignificantBits() - first.getMostSignificantBits()) / ID_SPACE;
+                sampledPages++;
+
+                for (final NodeId id : ids) {
+                    sampledNodes++;
+                    getMetrics().nodeProcessed(id.toString());
+                    final long problems = report.getTotal();
+                    final NodeState nodeState = loadNode(pm, id, report);
+                    if (nodeState != null) {
+                        fanout.add(nodeState.getChildNodeEntries().size());
+                        final long[] size = check(pm, nodeState, report);
+                        bytes.add(size[0]);
+                        dataStoreBytes.add(size[1]);
+                    }
+                    if (report.getTotal() > problems) {
+                        inconsistentNodes++;
+                    }
+                }
+                LOG.info("sampled page {} of {} ({} nodes)", new Object[]{page + 1, pages, ids.size()});
+            }
+        } finally {
+            report.close();
+        }
+
+        checkState(sampledPages > 1 && fanout.count > 1, "Not enough nodes sampled for an estimate");
+        final double[] totalNodes = estimateTotal(pageGaps, pageSpans, sampledPages);
+        final double[] inconsistencyRate = wilsonInterval(inconsistentNodes, sampledNodes);
+        final double totalBytes = totalNodes[0] * bytes.mean();
+        final double totalBytesError = getProductError(totalNodes, bytes);
+        final double totalDataStoreBytes = totalNodes[0] * dataStoreBytes.mean();
+        final double totalDataStoreBytesError = getProductError(totalNodes, dataStoreBytes);
+
+        LOG.info("Sampled {} nodes in {} pages (DS: binaries in the data store)", sampledNodes, sampledPages);
+        LOG.info("Total nodes:        {}", format(totalNodes[0], totalNodes[1]));
+        LOG.info("Average fanout:     {}", format(fanout.mean(), fanout.halfWidth()));
+        LOG.info("PM bytes per node:  {}", format(bytes.mean(), bytes.halfWidth()));
+        LOG.info("Total PM bytes:     {}", format(totalBytes, totalBytesError));
+        LOG.info("DS bytes per node:  {}", format(dataStoreBytes.mean(), dataStoreBytes.halfWidth()));
+        LOG.info("Total DS bytes:     {}", format(totalDataStoreBytes, totalDataStoreBytesError));
+        LOG.info("Inconsistency rate: {} % (95% CI {} % .. {} %)", new Object[]{
+                String.format("%.4f", 100.0 * inconsistentNodes / sampledNodes),
+                String.format("%.4f", 100 * inconsistencyRate[0]),
+                String.format("%.4f", 100 * inconsistencyRate[1])});
+    }
+
+    private static NodeState loadNode(PersistenceManager pm, NodeId id, ConsistencyReport report) {
+        try {
+            return pm.load(id);
+        } catch (ItemStateException e) {
+            report.report(ConsistencyReport.Problem.UNLOADABLE_NODE, id, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Checks the given node and reports any problems.
+     *
+     * @return the size of the node in the persistence in bytes, i.e. its serialized form plus the lengths
+     *         of its property values, and the size of its binary values held in the data store.
+     */
+    private static long[] check(PersistenceManager pm, NodeState nodeState, ConsistencyReport report)
+            throws ItemStateException {
+        final String label = "node " + nodeState.getNodeId();
+        if (nodeState.getParentId() != null) {
+            final NodeState parent = loadNode(pm, nodeState.getParentId(), report);
+            if (parent != null && !parent.hasChildNodeEntry(nodeState.getNodeId())) {
+                report.report(ConsistencyReport.Problem.PARENT_MISMATCH, nodeState.getNodeId(),
+                        label + " is not referenced by its parent " + nodeState.getParentId());
+            }
+        }
+        for (final ChildNodeEntry childNodeEntry : nodeState.getChildNodeEntries()) {
+            if (!pm.exists(childNodeEntry.getId())) {
+                report.report(ConsistencyReport.Problem.MISSING_CHILD, nodeState.getNodeId(),
+                        label + " references missing child " + childNodeEntry.getName() + " (" + childNodeEntry.getId() + ")");
+            }
+        }
+
+        long size = getSerializedSize(nodeState);
+        long dataStoreSize = 0;
+        for (final PropertyState propertyState : ConsistencyCheck.checkProperties(pm, nodeState, label, report)) {
+            for (final InternalValue value : propertyState.getValues()) {
+                try {
+                    if (value.isInDataStore()) {
+                        dataStoreSize += value.getLength();
+                    } else {
+                        size += value.getLength();
+                    }
+                } catch (RepositoryException e) {
+                    LOG.debug("Cannot determine value length of {}", propertyState.getId());
+                }
+            }
+        }
+        return new long[]{size, dataStoreSize};
+    }
+
+    private static long getSerializedSize(NodeState nodeState) {
+        final CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            Serializer.serialize(nodeState, out);
+        } catch (Exception e) {
+            LOG.debug("Cannot serialize {}", nodeState.getNodeId());
+        }
+        return out.getCount();
+    }
+
+    /**
+     * Ratio estimator of the total node count: the number of ID gaps per fraction of
+     * the ID space, with the variance approximated by linearization.
+     *
+     * @return estimate and half width of its confidence interval.
+     */
+    private static double[] estimateTotal(double[] gaps, double[] spans, int n) {
+        double sumGaps = 0;
+        double sumSpans = 0;
+        for (int i = 0; i < n; i++) {
+            sumGaps += gaps[i];
+            sumSpans += spans[i];
+        }
+        final double ratio = sumGaps / sumSpans;
+        double sumSquaredResiduals = 0;
+        for (int i = 0; i < n; i++) {
+            sumSquaredResiduals += square(gaps[i] - ratio * spans[i]);
+        }
+        final double meanSpan = sumSpans / n;
+        final double variance = sumSquaredResiduals / (n - 1) / (n * square(meanSpan));
+        return new double[]{ratio, Z * Math.sqrt(variance)};
+    }
+
+    /**
+     * @return lower and upper bound of the Wilson score interval for a proportion.
+     */
+    private static double[] wilsonInterval(long successes, long n) {
+        final double p = (double) successes / n;
+        final double z2 = Z * Z;
+        final double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        final double halfWidth = Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n)) / (1 + z2 / n);
+        return new double[]{Math.max(0, center - halfWidth), Math.min(1, center + halfWidth)};
+    }
+
+    /**
+     * @return the half width of the confidence interval of the estimated total times the mean of the statistic.
+     */
+    private static double getProductError(double[] totalNodes, Statistic statistic) {
+        final double product = totalNodes[0] * statistic.mean();
+        if (product == 0) {
+            return 0;
+        }
+        return product * Math.sqrt(square(relativeError(totalNodes)) + square(statistic.halfWidth() / statistic.mean()));
+    }
+
+    private static double relativeError(double[] estimate) {
+        return estimate[0] == 0 ? 0 : estimate[1] / estimate[0];
+    }
+
+    private static double toUnsignedDouble(long value) {
+        return value >= 0 ? value : (value >>> 1) * 2.0 + (value & 1);
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    private static String format(double estimate, double halfWidth) {
+        return String.format("%.1f (95%% CI %.1f .. %.1f)", estimate, Math.max(0, estimate - halfWidth), estimate + halfWidth);
+    }
+
+    /**
+     * Running mean and variance of a sample.
+     */
+    private static class Statistic {
+
+        private long count;
+
+        private double sum;
+
+        private double sumOfSquares;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            sumOfSquares += value * value;
+        }
+
+        double mean() {
+            return sum / count;
+        }
+
+        double halfWidth() {
+            final double variance = (sumOfSquares - sum * sum / count) / (count - 1);
+            return Z * Math.sqrt(Math.max(0, variance) / count);
+        }
+    }
+}
@@ -3,18 +3,57 @@ package net.distilledcode.jackrabbit.pm.commands;
 import com.day.crx.persistence.tar.Optimize;
 import com.day.crx.persistence.tar.TarPersistenceManager;
 import com.day.crx.persistence.tar.TarSetHandler;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Command to run TarOptimization on a TarPersistenceManager.
  *
  * If the PersistenceManager is not a TarPersistenceManager, an IllegalStateException is thrown.
+ * <p/>
+ * The optimizer runs in a background thread while its progress is reported based on
+ * the size of the workspace's tar files. The delay is passed on to the optimizer to
+ * throttle its I/O. The optimizer always processes all tar files and cannot be
+ * stopped, so the optimization cannot be split across maintenance windows.
  */
 public class TarOptimization extends AbstractCommand {
 
+    private static final Logger LOG = LoggerFactory.getLogger(TarOptimization.class);
+
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    private static final long MB = 1024 * 1024;
+
+    private final int delay;
+
+    /**
+     * @param delay throttling delay passed to {@code Optimize.optimizeAllFiles}.
+     */
+    public TarOptimization(final int delay) {
+        checkArgument(delay >= 0, "Delay must not be negative");
+        this.delay = delay;
+    }
+
     @Override
     protected void doExecute(final PMExecutionContext executionContext) throws Exception {
         final PersistenceManager persistenceManager = executionContext.getPersistenceManager();
@@ -23,6 +62,94 @@ public class TarOptimization extends AbstractCommand {
         final TarPersistenceManager tpm = (TarPersistenceManager) persistenceManager;
         final TarSetHandler tarSet = tpm.getTarSet();
         final Optimize optimizer = tarSet.createOptimizer();
-        optimizer.optimizeAllFiles(false, 100);
+
+        final File workspaceHome = executionContext.getWorkspaceHome();
+        final long initialSize = reportTarFiles(workspaceHome);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("tar-optimizer").build());
+        try {
+            final Future<Void> optimization = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    optimizer.optimizeAllFiles(false, delay);
+                    return null;
+                }
+            });
+            awaitOptimization(optimization, workspaceHome, initialSize);
+        } finally {
+            executor.shutdown();
+        }
+
+        final long finalSize = getTotalSize(findTarFiles(workspaceHome));
+        LOG.info("Tar files changed from {}MB to {}MB", initialSize / MB, finalSize / MB);
+    }
+
+    private void awaitOptimization(final Future<Void> optimization, final File workspaceHome, final long initialSize)
+            throws Exception {
+        final long startTime = System.currentTimeMillis();
+        while (true) {
+            try {
+                optimization.get(REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                LOG.info("Optimization finished after {}s", (System.currentTimeMillis() - startTime) / 1000);
+                return;
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            } catch (TimeoutException e) {
+                final long elapsed = System.currentTimeMillis() - startTime;
+                final long size = getTotalSize(findTarFiles(workspaceHome));
+                LOG.info("Optimizing for {}s, tar files {}MB (initially {}MB)",
+                        new Object[]{elapsed / 1000, size / MB, initialSize / MB});
+            }
+        }
+    }
+
+    /**
+     * Logs the largest tar files. The size of a tar file does not tell how much of
+     * it is garbage, so this only gives an overview of the workspace's storage.
+     *
+     * @return the total size of all tar files.
+     */
+    private static long reportTarFiles(final File workspaceHome) {
+        final List<File> tarFiles = findTarFiles(workspaceHome);
+        Collections.sort(tarFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                final long l1 = f1.length();
+                final long l2 = f2.length();
+                return l1 < l2 ? 1 : (l1 == l2 ? 0 : -1);
+            }
+        });
+        final long totalSize = getTotalSize(tarFiles);
+        LOG.info("{} tar files with a total of {}MB", tarFiles.size(), totalSize / MB);
+        for (final File tarFile : tarFiles.subList(0, Math.min(10, tarFiles.size()))) {
+            LOG.info("  {} ({}MB, last modified {})",
+                    new Object[]{tarFile.getPath(), tarFile.length() / MB, new Date(tarFile.lastModified())});
+        }
+        return totalSize;
+    }
+
+    private static List<File> findTarFiles(final File directory) {
+        final List<File> tarFiles = new ArrayList<File>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isDirectory()) {
+                    tarFiles.addAll(findTarFiles(file));
+                } else if (file.getName().endsWith(".tar")) {
+                    tarFiles.add(file);
+                }
+            }
+        }
+        return tarFiles;
+    }
+
+    private static long getTotalSize(final List<File> files) {
+        long size = 0;
+        for (final File file : files) {
+            size += file.length();
+        }
+        return size;
     }
 }
@@ -0,0 +1,430 @@
+package net.distilledcode.jackrabbit.pm.commands;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.distilledcode.jackrabbit.pm.util.PMExecutionContext;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.spi.Name;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Command to compare the workspace of the execution context (source) with the
+ * workspace of another repository (target), e.g. a backup and a live copy.
+ * <p/>
+ * Both sorted node ID streams are read page by page via {@code getAllNodeIds},
+ * with the next pages being fetched in parallel, and merged. Nodes present on
+ * both sides are compared, optionally including their property values. The
+ * differences are streamed as one line per node:
+ * <pre>
+ * + &lt;id&gt; &lt;path&gt;            only in the target
+ * - &lt;id&gt; &lt;path&gt;            only in the source
+ * ~ &lt;id&gt; &lt;path&gt; &lt;changes&gt;  different
+ * </pre>
+ * {@link NodeId#compareTo} compares the bits of the IDs as signed numbers, while
+ * database PersistenceManagers return the IDs ordered by their binary keys, i.e.
+ * as unsigned numbers. The order of each side is probed up front. If one side is
+ * in unsigned order, a side in signed order is read in two ranges, the IDs with
+ * a non-negative most significant half first, so that both are merged in unsigned
+ * order. Before any difference is written, both ID streams are read completely
+ * once to verify that they are sorted in the merge order, so PersistenceManagers
+ * returning unsorted IDs are rejected without writing wrong differences.
+ */
+public class WorkspaceDiff extends AbstractCommand {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkspaceDiff.class);
+
+    private static final int PAGE_SIZE = 10000;
+
+    private final File targetRepositoryHome;
+
+    private final String targetWorkspaceName;
+
+    private final boolean compareProperties;
+
+    private final PrintWriter output;
+
+    private final String outputFileName;
+
+    private long added;
+
+    private long removed;
+
+    private long changed;
+
+    public WorkspaceDiff(final File targetRepositoryHome, final String targetWorkspaceName,
+                         final boolean compareProperties, final File output) throws IOException {
+        checkArgument(targetRepositoryHome != null && targetRepositoryHome.isDirectory(),
+                "Target repository home directory required");
+        this.targetRepositoryHome = targetRepositoryHome;
+        this.targetWorkspaceName = targetWorkspaceName;
+        this.compareProperties = compareProperties;
+        if (output != null) {
+            this.outputFileName = output.getName();
+            this.output = new PrintWriter(output);
+        } else {
+            this.outputFileName = null;
+            this.output = null;
+        }
+    }
+
+    @Override
+    protected void doExecute(final PMExecutionContext executionContext) throws Exception {
+        if (output != null) {
+            LOG.info("Output is written to {}", outputFileName);
+        }
+        final PMExecutionContext targetContext =
+                PMExecutionContext.create(targetRepositoryHome.getAbsolutePath(), targetWorkspaceName);
+        final ExecutorService executor = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("diff-id-scan-%d").build());
+        try {
+            final IterablePersistenceManager source = executionContext.getCachingPersistenceManager();
+            final IterablePersistenceManager target = targetContext.getCachingPersistenceManager();
+            final IdOrder sourceOrder = detectOrder("source", source);
+            final IdOrder targetOrder = detectOrder("target", target);
+            final IdOrder order = sourceOrder == IdOrder.UNSIGNED || targetOrder == IdOrder.UNSIGNED
+                    ? IdOrder.UNSIGNED : IdOrder.SIGNED;
+            LOG.info("Merging node IDs in {} order (source: {}, target: {})", new Object[]{order,
+                    sourceOrder == null ? "any" : sourceOrder, targetOrder == null ? "any" : targetOrder});
+            new NodeIdStream("source", source, sourceOrder, order, executor).verifyOrder();
+            new NodeIdStream("target", target, targetOrder, order, executor).verifyOrder();
+            diff(source, target, order, new NodeIdStream("source", source, sourceOrder, order, executor),
+                    new NodeIdStream("target", target, targetOrder, order, executor));
+        } finally {
+            executor.shutdownNow();
+            targetContext.dispose();
+            if (output != null) {
+                output.flush();
+                output.close();
+            }
+        }
+        LOG.info("{} nodes added, {} removed, {} changed", new Object[]{added, removed, changed});
+    }
+
+    /**
+     * Probes the order in which a PersistenceManager returns node IDs: in signed
+     * order, only IDs with a non-negative most significant half follow the ID
+     * {@code ffffffff-ffff-ffff-ffff-ffffffffffff}, in unsigned order only IDs with
+     * a negative one follow {@code 7fffffff-ffff-ffff-7fff-ffffffffffff}.
+     *
+     * @return the order, {@code null} if all IDs have the same sign and therefore
+     *         compare alike in both orders.
+     */
+    private static IdOrder detectOrder(final String name, final IterablePersistenceManager pm) throws Exception {
+        final boolean unsigned = pm.getAllNodeIds(new NodeId(Long.MAX_VALUE, Long.MAX_VALUE), 1).iterator().hasNext();
+        final boolean signed = pm.getAllNodeIds(new NodeId(-1L, -1L), 1).iterator().hasNext();
+        checkState(!(unsigned && signed), "The %s PersistenceManager returns node IDs neither in signed nor in "
+                + "unsigned order, it cannot be compared with --diff", name);
+        return unsigned ? IdOrder.UNSIGNED : (signed ? IdOrder.SIGNED : null);
+    }
+
+    private void diff(final PersistenceManager source, final PersistenceManager target, final IdOrder order,
+                      final NodeIdStream sourceIds, final NodeIdStream targetIds) throws Exception {
+        long processed = 0;
+        while (sourceIds.peek() != null || targetIds.peek() != null) {
+            final NodeId sourceId = sourceIds.peek();
+            final NodeId targetId = targetIds.peek();
+            final int cmp = sourceId == null ? 1 : (targetId == null ? -1 : order.compare(sourceId, targetId));
+            getMetrics().nodeProcessed(String.valueOf(cmp > 0 ? targetId : sourceId));
+            if (cmp < 0) {
+                removed++;
+                print('-', sourceId, getPath(source, sourceId), null);
+                sourceIds.next();
+            } else if (cmp > 0) {
+                added++;
+                print('+', targetId, getPath(target, targetId), null);
+                targetIds.next();
+            } else {
+                compare(source, target, sourceId);
+                sourceIds.next();
+                targetIds.next();
+            }
+            if (++processed % 100000 == 0) {
+                LOG.info("compared {} node IDs ({} added, {} removed, {} changed)",
+                        new Object[]{processed, added, removed, changed});
+            }
+        }
+    }
+
+    private void compare(final PersistenceManager source, final PersistenceManager target, final NodeId id) {
+        final NodeState sourceState = loadNodeState(source, id);
+        final NodeState targetState = loadNodeState(target, id);
+        final List<String> changes = new ArrayList<String>();
+        if (sourceState == null || targetState == null) {
+            changes.add(sourceState == null ? "unloadable-in-source" : "unloadable-in-target");
+        } else {
+            if (!equal(sourceState.getParentId(), targetState.getParentId())) {
+                changes.add("parent");
+            }
+            if (!equal(sourceState.getNodeTypeName(), targetState.getNodeTypeName())) {
+                changes.add("primary-type");
+            }
+            if (!sourceState.getMixinTypeNames().equals(targetState.getMixinTypeNames())) {
+                changes.add("mixins");
+            }
+            if (!equalChildNodeEntries(sourceState.getChildNodeEntries(), targetState.getChildNodeEntries())) {
+                changes.add("children");
+            }
+            if (!sourceState.getPropertyNames().equals(targetState.getPropertyNames())) {
+                changes.add("property-names");
+            }
+            if (compareProperties) {
+                for (final Name name : sourceState.getPropertyNames()) {
+                    if (targetState.hasPropertyName(name) && !equalProperties(source, target, new PropertyId(id, name))) {
+                        changes.add("property:" + name);
+                    }
+                }
+            }
+        }
+        if (!changes.isEmpty()) {
+            changed++;
+            print('~', id, getPath(sourceState != null ? source : target, id), changes);
+        }
+    }
+
+    private static boolean equalChildNodeEntries(final List<ChildNodeEntry> entries, final List<ChildNodeEntry> otherEntries) {
+        if (entries.size() != otherEntries.size()) {
+            return false;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            final ChildNodeEntry entry = entries.get(i);
+            final ChildNodeEntry otherEntry = otherEntries.get(i);
+            if (!entry.getId().equals(otherEntry.getId()) || !entry.getName().equals(otherEntry.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalProperties(final PersistenceManager source, final PersistenceManager target,
+                                           final PropertyId id) {
+        try {
+            final PropertyState sourceState = source.load(id);
+            final PropertyState targetState = target.load(id);
+            return sourceState.getType() == targetState.getType()
+                    && sourceState.isMultiValued() == targetState.isMultiValued()
+                    && Arrays.equals(sourceState.getValues(), targetState.getValues());
+        } catch (ItemStateException e) {
+            LOG.warn("Cannot compare property {}: {}", id, e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean equal(final Object o1, final Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    private static String getPath(final PersistenceManager pm, final NodeId id) {
+        final NodeState nodeState = loadNodeState(pm, id);
+        if (nodeState != null) {
+            try {
+                return getPath(pm, nodeState);
+            } catch (ItemStateException e) {
+                LOG.debug("Cannot determine path of node ID {}", id);
+            }
+        }
+        return "?";
+    }
+
+    private void print(final char type, final NodeId id, final String path, final List<String> changes) {
+        final StringBuilder line = new StringBuilder().append(type).append(' ').append(id).append(' ').append(path);
+        if (changes != null) {
+            for (final String change : changes) {
+                line.append(' ').append(change);
+            }
+        }
+        if (output != null) {
+            output.println(line);
+        } else {
+            LOG.info(line.toString());
+        }
+    }
+
+    /**
+     * Orders in which PersistenceManagers return node IDs.
+     */
+    private enum IdOrder {
+
+        /**
+         * The order of {@link NodeId#compareTo}, comparing both halves as signed longs.
+         */
+        SIGNED {
+            @Override
+            int compare(NodeId id1, NodeId id2) {
+                return id1.compareTo(id2);
+            }
+        },
+
+        /**
+         * Comparing both halves as unsigned longs, i.e. the order of the binary keys.
+         */
+        UNSIGNED {
+            @Override
+            int compare(NodeId id1, NodeId id2) {
+                final int cmp = compareUnsigned(id1.getMostSignificantBits(), id2.getMostSignificantBits());
+                return cmp != 0 ? cmp : compareUnsigned(id1.getLeastSignificantBits(), id2.getLeastSignificantBits());
+            }
+        };
+
+        abstract int compare(NodeId id1, NodeId id2);
+
+        private static int compareUnsigned(long l1, long l2) {
+            final long u1 = l1 ^ Long.MIN_VALUE;
+            final long u2 = l2 ^ Long.MIN_VALUE;
+            return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+        }
+    }
+
+    /**
+     * Pages through the node IDs of a PersistenceManager, fetching the next page in
+     * the background while the current one is processed.
+     * <p/>
+     * If the PersistenceManager returns the IDs in signed order, but they are merged
+     * in unsigned order, the IDs are read in two ranges: first the IDs following
+     * {@code ffffffff-ffff-ffff-ffff-ffffffffffff}, i.e. those with a non-negative
+     * most significant half, then those with a negative one from the start.
+     */
+    private static class NodeIdStream {
+
+        private final String name;
+
+        private final IterablePersistenceManager pm;
+
+        private final IdOrder order;
+
+        private final ExecutorService executor;
+
+        private Range range;
+
+        private Future<List<NodeId>> nextPage;
+
+        private List<NodeId> page = new ArrayList<NodeId>();
+
+        private int position;
+
+        private NodeId previous;
+
+        /**
+         * @param pmOrder the order of the PersistenceManager, {@code null} if either order applies.
+         * @param order the order in which the IDs are returned.
+         */
+        NodeIdStream(final String name, final IterablePersistenceManager pm, final IdOrder pmOrder,
+                     final IdOrder order, final ExecutorService executor) {
+            this.name = name;
+            this.pm = pm;
+            this.order = order;
+            this.executor = executor;
+            if (pmOrder == IdOrder.SIGNED && order == IdOrder.UNSIGNED) {
+                this.range = Range.NON_NEGATIVE;
+                this.nextPage = fetch(new NodeId(-1L, -1L));
+            } else {
+                this.range = Range.ALL;
+                this.nextPage = fetch(null);
+            }
+        }
+
+        /**
+         * Reads all IDs and checks that they are sorted in the merge order.
+         */
+        void verifyOrder() throws Exception {
+            long count = 0;
+            while (peek() != null) {
+                next();
+                count++;
+            }
+            LOG.info("{} node IDs of the {} PersistenceManager are in {} order", new Object[]{count, name, order});
+        }
+
+        /**
+         * @return the current node ID or {@code null} if all IDs have been consumed.
+         */
+        NodeId peek() throws Exception {
+            while (position == page.size()) {
+                if (nextPage == null) {
+                    return null;
+                }
+                loadNextPage();
+            }
+            return page.get(position);
+        }
+
+        void next() throws Exception {
+            final NodeId current = peek();
+            checkState(previous == null || order.compare(previous, current) < 0,
+                    "The %s PersistenceManager does not return node IDs in %s order (%s before %s), "
+                            + "it cannot be compared with --diff", name, order, previous, current);
+            previous = current;
+            position++;
+        }
+
+        private void loadNextPage() throws Exception {
+            final List<NodeId> ids;
+            try {
+                ids = nextPage.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+            boolean endOfRange = ids.size() < PAGE_SIZE;
+            page = new ArrayList<NodeId>(ids.size());
+            position = 0;
+            for (final NodeId id : ids) {
+                final boolean negative = id.getMostSignificantBits() < 0;
+                if (range == Range.NEGATIVE && !negative) {
+                    // the negative IDs precede all others in signed order
+                    endOfRange = true;
+                    break;
+                }
+                if (range == Range.ALL || negative == (range == Range.NEGATIVE)) {
+                    page.add(id);
+                }
+            }
+            if (!endOfRange) {
+                nextPage = fetch(ids.get(ids.size() - 1));
+            } else if (range == Range.NON_NEGATIVE) {
+                range = Range.NEGATIVE;
+                nextPage = fetch(null);
+            } else {
+                nextPage = null;
+            }
+        }
+
+        private Future<List<NodeId>> fetch(final NodeId after) {
+            return executor.submit(new Callable<List<NodeId>>() {
+                @Override
+                public List<NodeId> call() throws Exception {
+                    return Lists.newArrayList(pm.getAllNodeIds(after, PAGE_SIZE));
+                }
+            });
+        }
+
+        /**
+         * The IDs returned from the range currently read, by the sign of their most significant half.
+         */
+        private enum Range {
+            ALL, NON_NEGATIVE, NEGATIVE
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package net.distilledcode.jackrabbit.pm.util;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.PersistenceManager;
 import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
@@ -15,8 +17,42 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * PersistenceManager wrapper that caches recently loaded NodeStates.
+ * <p/>
+ * Optionally, NodeStates can be prefetched on a bounded pool of I/O threads
+ * (see {@link #prefetch(List)}). Prefetched NodeStates are handed over to the
+ * cache once they are requested via {@link #load(NodeId)}. Prefetch loads run
+ * concurrently with the loads of the calling thread, but never with a
+ * {@link #store(ChangeLog)}: in-flight prefetches are awaited before a store is
+ * delegated. All other state is confined to the calling thread.
+ * <p/>
+ * An optional {@link MappedNodeStateCache} serves as second level cache for
+ * NodeStates that have been evicted from the heap-bound cache.
+ * <p/>
+ * An optional {@link ExistenceFilter} answers existence checks of node IDs
+ * that definitely do not exist without accessing the persistence, and keeps
+ * such IDs from being prefetched. Loads are always served from the persistence,
+ * so that a node unknown to the filter is not mistaken for a missing one.
+ */
 public class CachingPersistenceManager implements IterablePersistenceManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(CachingPersistenceManager.class);
@@ -27,10 +63,78 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
 
     private final AtomicInteger misses = new AtomicInteger(0);
 
+    private final AtomicInteger prefetchHits = new AtomicInteger(0);
+
+    private final AtomicInteger filteredMisses = new AtomicInteger(0);
+
     private final LRUCache<NodeId, NodeState> cache;
+
+    /**
+     * Maximum number of prefetch loads in flight, 0 if prefetching is disabled.
+     */
+    private final int prefetchDepth;
+
+    /**
+     * Thread pool for prefetch loads, {@code null} if prefetching is disabled.
+     */
+    private final ExecutorService prefetchExecutor;
+
+    /**
+     * NodeIds waiting to be prefetched, in the order they are expected to be loaded.
+     */
+    private final Deque<NodeId> prefetchQueue = new ArrayDeque<NodeId>();
+
+    /**
+     * Maximum number of NodeIds waiting to be prefetched, in multiples of the prefetch depth.
+     */
+    private static final int PREFETCH_QUEUE_FACTOR = 16;
+
+    /**
+     * Prefetch loads that have been submitted but not yet collected.
+     */
+    private final Map<NodeId, Future<NodeState>> inFlight = new HashMap<NodeId, Future<NodeState>>();
+
+    /**
+     * Completed prefetch loads that have not been requested yet.
+     */
+    private final LRUCache<NodeId, NodeState> prefetched;
+
+    /**
+     * Off-heap second level cache, may be {@code null}.
+     */
+    private MappedNodeStateCache secondLevelCache;
+
+    /**
+     * Filter of existing node IDs, may be {@code null}.
+     */
+    private ExistenceFilter existenceFilter;
+
     public CachingPersistenceManager(IterablePersistenceManager pm, int cacheSize) {
+        this(pm, cacheSize, 0, 0);
+    }
+
+    public CachingPersistenceManager(IterablePersistenceManager pm, int cacheSize, int prefetchDepth, int prefetchThreads) {
         persistenceManager = pm;
         cache = new LRUCache<NodeId, NodeState>(cacheSize);
+        if (prefetchDepth > 0 && prefetchThreads > 0) {
+            this.prefetchDepth = prefetchDepth;
+            this.prefetched = new LRUCache<NodeId, NodeState>(2 * prefetchDepth);
+            this.prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("pm-prefetch-%d").build());
+            LOG.info("Prefetching up to {} NodeStates using {} threads", prefetchDepth, prefetchThreads);
+        } else {
+            this.prefetchDepth = 0;
+            this.prefetched = null;
+            this.prefetchExecutor = null;
+        }
+    }
+
+    public void setSecondLevelCache(MappedNodeStateCache secondLevelCache) {
+        this.secondLevelCache = secondLevelCache;
+    }
+
+    public void setExistenceFilter(ExistenceFilter existenceFilter) {
+        this.existenceFilter = existenceFilter;
     }
 
     @Override
@@ -40,9 +144,30 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
 
     @Override
     public void close() throws Exception {
+        shutdown();
         persistenceManager.close();
     }
 
+    /**
+     * Stops any prefetching and logs the final cache statistics. The wrapped
+     * PersistenceManager is not closed.
+     */
+    public void shutdown() {
+        if (prefetchExecutor != null) {
+            discardPrefetches();
+            prefetchQueue.clear();
+            prefetchExecutor.shutdownNow();
+            try {
+                prefetchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (accesses.get() > 0) {
+            LOG.info(getHitMissRatio());
+        }
+    }
+
     @Override
     public NodeState createNew(NodeId id) {
         return persistenceManager.createNew(id);
@@ -56,14 +181,55 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
     @Override
     public NodeState load(NodeId id) throws NoSuchItemStateException, ItemStateException {
         final int a = accesses.incrementAndGet();
-        if (!cache.containsKey(id)) {
+        NodeState state = cache.get(id);
+        if (state == null) {
             misses.incrementAndGet();
-            cache.put(id, persistenceManager.load(id));
+            state = secondLevelCache == null ? null : secondLevelCache.get(id, persistenceManager);
+            if (state == null) {
+                state = takePrefetched(id);
+                if (state == null) {
+                    state = persistenceManager.load(id);
+                }
+                if (secondLevelCache != null) {
+                    secondLevelCache.put(state);
+                }
+            }
+            cache.put(id, state);
+        }
+        if (prefetchExecutor != null) {
+            fillPrefetchWindow();
         }
         if (a % 10000000 == 0) {
             LOG.info(getHitMissRatio());
         }
-        return cache.get(id);
+        return state;
+    }
+
+    /**
+     * Schedules the given NodeIds for prefetching. The IDs are expected in the
+     * order in which they are going to be loaded and take precedence over IDs
+     * scheduled earlier, which matches a depth-first traversal. At most
+     * {@code prefetchDepth} loads are in flight at any time, each batch of loads
+     * is submitted in NodeId order for better locality in the storage.
+     * <p/>
+     * At most {@code 16 * prefetchDepth} NodeIds wait for prefetching. If more are
+     * scheduled, the oldest ones are dropped, as they are needed last.
+     * <p/>
+     * Does nothing if prefetching is disabled.
+     *
+     * @param ids the NodeIds to prefetch.
+     */
+    public void prefetch(List<NodeId> ids) {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            prefetchQueue.addFirst(ids.get(i));
+        }
+        while (prefetchQueue.size() > PREFETCH_QUEUE_FACTOR * prefetchDepth) {
+            prefetchQueue.pollLast();
+        }
+        fillPrefetchWindow();
     }
 
     @Override
@@ -78,7 +244,25 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
 
     @Override
     public boolean exists(NodeId id) throws ItemStateException {
-        return cache.containsKey(id) || persistenceManager.exists(id);
+        if (cache.containsKey(id)) {
+            return true;
+        }
+        if (isFilteredOut(id)) {
+            return false;
+        }
+        return (prefetched != null && prefetched.containsKey(id))
+                || (secondLevelCache != null && secondLevelCache.contains(id))
+                || persistenceManager.exists(id);
+    }
+
+    /**
+     * Checks the existence of a node in the wrapped PersistenceManager, bypassing
+     * the caches and the existence filter. The filter misses nodes that are not
+     * returned by {@code getAllNodeIds}, e.g. on a damaged workspace, therefore
+     * repairs must confirm missing nodes with this method.
+     */
+    public boolean existsInPersistence(NodeId id) throws ItemStateException {
+        return persistenceManager.exists(id);
     }
 
     @Override
@@ -93,8 +277,29 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
 
     @Override
     public void store(ChangeLog changeLog) throws ItemStateException {
+        // PersistenceManagers do not expect loads while storing
+        discardPrefetches();
         persistenceManager.store(changeLog);
+        if (existenceFilter != null) {
+            for (final ItemState state : changeLog.addedStates()) {
+                if (state.isNode()) {
+                    existenceFilter.put((NodeId) state.getId());
+                }
+            }
+        }
         cache.clear();
+        if (secondLevelCache != null) {
+            for (final ItemState state : changeLog.modifiedStates()) {
+                if (state.isNode()) {
+                    secondLevelCache.invalidate((NodeId) state.getId());
+                }
+            }
+            for (final ItemState state : changeLog.deletedStates()) {
+                if (state.isNode()) {
+                    secondLevelCache.invalidate((NodeId) state.getId());
+                }
+            }
+        }
     }
 
     @Override
@@ -107,6 +312,138 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
         return persistenceManager.getAllNodeIds(after, maxCount);
     }
 
+    /**
+     * @return the maximum number of prefetch loads in flight, 0 if prefetching is disabled.
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public int getAccessCount() {
+        return accesses.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    public int getPrefetchHitCount() {
+        return prefetchHits.get();
+    }
+
+    public int getFilteredMissCount() {
+        return filteredMisses.get();
+    }
+
+    /**
+     * May be called from other threads, in which case the result is approximate.
+     *
+     * @return the number of NodeIds queued or in flight for prefetching.
+     */
+    public int getPrefetchQueueDepth() {
+        return prefetchExecutor == null ? 0 : prefetchQueue.size() + inFlight.size();
+    }
+
+    private boolean isFilteredOut(NodeId id) {
+        if (existenceFilter != null && !existenceFilter.mightContain(id)) {
+            filteredMisses.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private NodeState takePrefetched(NodeId id) {
+        if (prefetchExecutor == null) {
+            return null;
+        }
+        if (id.equals(prefetchQueue.peekFirst())) {
+            // the traversal overtook the prefetching, no need to load this ID again
+            prefetchQueue.pollFirst();
+        }
+        NodeState state = prefetched.remove(id);
+        if (state == null) {
+            final Future<NodeState> future = inFlight.remove(id);
+            if (future != null) {
+                state = getPrefetchResult(id, future);
+            }
+        }
+        if (state != null) {
+            prefetchHits.incrementAndGet();
+        }
+        return state;
+    }
+
+    private void fillPrefetchWindow() {
+        collectCompletedPrefetches();
+        if (inFlight.size() > prefetchDepth / 2) {
+            return;
+        }
+
+        final Set<NodeId> batch = new LinkedHashSet<NodeId>();
+        while (inFlight.size() + batch.size() < prefetchDepth && !prefetchQueue.isEmpty()) {
+            final NodeId id = prefetchQueue.pollFirst();
+            if (!cache.containsKey(id) && !prefetched.containsKey(id) && !inFlight.containsKey(id)
+                    && (secondLevelCache == null || !secondLevelCache.contains(id))
+                    && (existenceFilter == null || existenceFilter.mightContain(id))) {
+                batch.add(id);
+            }
+        }
+
+        final List<NodeId> sortedBatch = new ArrayList<NodeId>(batch);
+        Collections.sort(sortedBatch);
+        for (final NodeId id : sortedBatch) {
+            inFlight.put(id, prefetchExecutor.submit(new Callable<NodeState>() {
+                @Override
+                public NodeState call() throws Exception {
+                    return persistenceManager.load(id);
+                }
+            }));
+        }
+    }
+
+    private void collectCompletedPrefetches() {
+        final Iterator<Map.Entry<NodeId, Future<NodeState>>> iterator = inFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<NodeId, Future<NodeState>> entry = iterator.next();
+            if (entry.getValue().isDone()) {
+                iterator.remove();
+                final NodeState state = getPrefetchResult(entry.getKey(), entry.getValue());
+                if (state != null) {
+                    prefetched.put(entry.getKey(), state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Failed prefetches are ignored, the subsequent synchronous load reports the problem.
+     */
+    private NodeState getPrefetchResult(NodeId id, Future<NodeState> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.debug("prefetching node ID {} failed: {}", id, e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Waits for all in-flight prefetch loads to finish and drops their results.
+     * Cancelling is not sufficient, as it does not stop loads that are already running.
+     */
+    private void discardPrefetches() {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        for (final Map.Entry<NodeId, Future<NodeState>> entry : inFlight.entrySet()) {
+            getPrefetchResult(entry.getKey(), entry.getValue());
+        }
+        inFlight.clear();
+        prefetched.clear();
+    }
+
     private String getHitMissRatio() {
         final int a = accesses.get();
         final int m = misses.get();
@@ -115,6 +452,15 @@ public class CachingPersistenceManager implements IterablePersistenceManager {
         final double percentage = (double) h / a * 100;
         final double hmRatio = (double) h / m;
 
-        return String.format("Total accesses %d, (h=%d/m=%d => %.2f), cached %.2f%%", a, h, m, hmRatio, percentage);
+        String ratio = String.format("Total accesses %d, (h=%d/m=%d => %.2f), cached %.2f%%", a, h, m, hmRatio, percentage);
+        if (prefetchExecutor != null) {
+            final int p = prefetchHits.get();
+            final double prefetchPercentage = m == 0 ? 0 : (double) p / m * 100;
+            ratio = String.format("%s, prefetched %d of %d misses (%.2f%%)", ratio, p, m, prefetchPercentage);
+        }
+        if (existenceFilter != null) {
+            ratio = String.format("%s, %d non-existing IDs filtered", ratio, filteredMisses.get());
+        }
+        return ratio;
     }
 }
@@ -0,0 +1,297 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Live metrics of a running command, exposed as MBean on the platform MBean
+ * server and optionally written to a metrics file at a fixed interval.
+ * <p/>
+ * Commands report their progress via {@link #nodeProcessed(String)} and
+ * {@link #batchCommitted()} and read their batch size from {@link #getBatchSize()},
+ * so that operators can tune the batch size and the throttling of a running command.
+ * The cache statistics are read from the {@link CachingPersistenceManager} without
+ * synchronization and are therefore approximate.
+ */
+public class CommandMetrics implements CommandMetricsMBean, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommandMetrics.class);
+
+    private static final String DOMAIN = "net.distilledcode.jackrabbit.pm";
+
+    private static final int THROTTLE_INTERVAL = 1000;
+
+    private static final long SAMPLE_SECONDS = 10;
+
+    private static final long MB = 1024 * 1024;
+
+    private final AtomicLong nodesProcessed = new AtomicLong();
+
+    private final AtomicLong batchesCommitted = new AtomicLong();
+
+    private volatile long startTime = System.currentTimeMillis();
+
+    private volatile String commandName;
+
+    private volatile String currentPath;
+
+    private volatile int batchSize;
+
+    private volatile long throttleMillis;
+
+    private volatile double recentNodesPerSecond;
+
+    private volatile CachingPersistenceManager cachingPersistenceManager;
+
+    private ObjectName objectName;
+
+    private ScheduledExecutorService scheduler;
+
+    private PrintWriter metricsFile;
+
+    /**
+     * Registers the MBean and starts sampling. Registration problems are logged
+     * but do not prevent the command from running.
+     *
+     * @param commandName the name of the command, used in the MBean's object name.
+     * @param file file to write the metrics to periodically, may be {@code null}.
+     * @param intervalSeconds interval at which the metrics are written to the file.
+     */
+    public void start(String commandName, File file, int intervalSeconds) throws IOException {
+        checkState(scheduler == null, "Metrics already started");
+        this.commandName = commandName;
+        this.startTime = System.currentTimeMillis();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(DOMAIN + ":type=CommandMetrics,name=" + ObjectName.quote(commandName));
+            server.registerMBean(this, objectName);
+            LOG.info("Registered command metrics as {}", objectName);
+        } catch (Exception e) {
+            LOG.warn("Cannot register command metrics MBean", e);
+            objectName = null;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("command-metrics").build());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long lastNodes;
+
+            @Override
+            public void run() {
+                final long nodes = nodesProcessed.get();
+                recentNodesPerSecond = (double) (nodes - lastNodes) / SAMPLE_SECONDS;
+                lastNodes = nodes;
+            }
+        }, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+
+        if (file != null) {
+            checkArgument(intervalSeconds > 0, "Metrics interval must be positive");
+            LOG.info("Writing metrics to {} every {}s", file.getAbsolutePath(), intervalSeconds);
+            metricsFile = new PrintWriter(file);
+            metricsFile.println("time,elapsedSeconds,nodes,nodesPerSecond,recentNodesPerSecond,batches,"
+                    + "batchSize,throttleMillis,cacheHitRate,prefetchHitRate,prefetchQueueDepth,heapUsedMB,currentPath");
+            metricsFile.flush();
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    writeMetrics();
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void setCachingPersistenceManager(CachingPersistenceManager cachingPersistenceManager) {
+        this.cachingPersistenceManager = cachingPersistenceManager;
+    }
+
+    /**
+     * Counts a processed node and pauses for the configured throttle time
+     * after every {@value #THROTTLE_INTERVAL} nodes.
+     *
+     * @param path the path or node ID of the node, {@code null} to keep the current path.
+     */
+    public void nodeProcessed(String path) {
+        if (path != null) {
+            currentPath = path;
+        }
+        final long throttle = throttleMillis;
+        if (nodesProcessed.incrementAndGet() % THROTTLE_INTERVAL == 0 && throttle > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(throttle);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void setCurrentPath(String path) {
+        currentPath = path;
+    }
+
+    public void batchCommitted() {
+        batchesCommitted.incrementAndGet();
+    }
+
+    @Override
+    public String getCommandName() {
+        return commandName;
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return (System.currentTimeMillis() - startTime) / 1000;
+    }
+
+    @Override
+    public long getNodesProcessed() {
+        return nodesProcessed.get();
+    }
+
+    @Override
+    public double getNodesPerSecond() {
+        final long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed == 0 ? 0 : nodesProcessed.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public double getRecentNodesPerSecond() {
+        return recentNodesPerSecond;
+    }
+
+    @Override
+    public long getBatchesCommitted() {
+        return batchesCommitted.get();
+    }
+
+    @Override
+    public String getCurrentPath() {
+        return currentPath;
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        final CachingPersistenceManager cpm = cachingPersistenceManager;
+        if (cpm == null || cpm.getAccessCount() == 0) {
+            return 0;
+        }
+        return (double) (cpm.getAccessCount() - cpm.getMissCount()) / cpm.getAccessCount() * 100;
+    }
+
+    @Override
+    public double getPrefetchHitRate() {
+        final CachingPersistenceManager cpm = cachingPersistenceManager;
+        if (cpm == null || cpm.getMissCount() == 0) {
+            return 0;
+        }
+        return (double) cpm.getPrefetchHitCount() / cpm.getMissCount() * 100;
+    }
+
+    @Override
+    public long getFilteredMisses() {
+        final CachingPersistenceManager cpm = cachingPersistenceManager;
+        return cpm == null ? 0 : cpm.getFilteredMissCount();
+    }
+
+    @Override
+    public int getPrefetchQueueDepth() {
+        final CachingPersistenceManager cpm = cachingPersistenceManager;
+        return cpm == null ? 0 : cpm.getPrefetchQueueDepth();
+    }
+
+    @Override
+    public long getHeapUsedMB() {
+        return getHeapUsage().getUsed() / MB;
+    }
+
+    @Override
+    public long getHeapMaxMB() {
+        return getHeapUsage().getMax() / MB;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public void setBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        if (this.batchSize != 0 && this.batchSize != batchSize) {
+            LOG.info("Batch size changed from {} to {}", this.batchSize, batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public long getThrottleMillis() {
+        return throttleMillis;
+    }
+
+    @Override
+    public void setThrottleMillis(long throttleMillis) {
+        checkArgument(throttleMillis >= 0, "Throttle must not be negative");
+        LOG.info("Throttle changed from {}ms to {}ms per {} nodes",
+                new Object[]{this.throttleMillis, throttleMillis, THROTTLE_INTERVAL});
+        this.throttleMillis = throttleMillis;
+    }
+
+    /**
+     * Stops sampling, writes the final metrics and unregisters the MBean.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (metricsFile != null) {
+            writeMetrics();
+            metricsFile.close();
+            metricsFile = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.debug("Cannot unregister command metrics MBean", e);
+            }
+            objectName = null;
+        }
+    }
+
+    private synchronized void writeMetrics() {
+        if (metricsFile == null) {
+            return;
+        }
+        metricsFile.println(String.format("%s,%d,%d,%.1f,%.1f,%d,%d,%d,%.2f,%.2f,%d,%d,%s",
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()),
+                getElapsedSeconds(), getNodesProcessed(), getNodesPerSecond(), getRecentNodesPerSecond(),
+                getBatchesCommitted(), getBatchSize(), getThrottleMillis(), getCacheHitRate(),
+                getPrefetchHitRate(), getPrefetchQueueDepth(), getHeapUsedMB(),
+                currentPath == null ? "" : currentPath));
+        metricsFile.flush();
+    }
+
+    private static MemoryUsage getHeapUsage() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+}
@@ -0,0 +1,67 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+/**
+ * JMX interface for monitoring and tuning a running command.
+ *
+ * @see CommandMetrics
+ */
+public interface CommandMetricsMBean {
+
+    String getCommandName();
+
+    long getElapsedSeconds();
+
+    long getNodesProcessed();
+
+    /**
+     * @return the average number of processed nodes per second since the command started.
+     */
+    double getNodesPerSecond();
+
+    /**
+     * @return the number of processed nodes per second during the last sampling interval.
+     */
+    double getRecentNodesPerSecond();
+
+    long getBatchesCommitted();
+
+    /**
+     * @return the path (or, for scans in ID order, the node ID) processed last.
+     */
+    String getCurrentPath();
+
+    /**
+     * @return the percentage of NodeState loads served by the cache.
+     */
+    double getCacheHitRate();
+
+    /**
+     * @return the percentage of cache misses served by prefetched NodeStates.
+     */
+    double getPrefetchHitRate();
+
+    long getFilteredMisses();
+
+    /**
+     * @return the number of NodeIds queued or in flight for prefetching.
+     */
+    int getPrefetchQueueDepth();
+
+    long getHeapUsedMB();
+
+    long getHeapMaxMB();
+
+    /**
+     * @return the number of changes persisted at once, 0 if the command does not persist in batches.
+     */
+    int getBatchSize();
+
+    void setBatchSize(int batchSize);
+
+    /**
+     * @return the pause in milliseconds after every 1000 processed nodes.
+     */
+    long getThrottleMillis();
+
+    void setThrottleMillis(long throttleMillis);
+}
@@ -0,0 +1,83 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects the problems found by a consistency check. Each problem is logged
+ * and optionally written to a report file, one line per problem. A summary
+ * of the problem counts is logged when the report is closed.
+ */
+public class ConsistencyReport implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsistencyReport.class);
+
+    public enum Problem {
+        /** A child node entry refers to a node that does not exist. */
+        MISSING_CHILD,
+        /** A child node entry refers to a node whose parent ID is a different node. */
+        PARENT_MISMATCH,
+        /** A node exists but cannot be loaded. */
+        UNLOADABLE_NODE,
+        /** A property name refers to a property that does not exist. */
+        MISSING_PROPERTY,
+        /** A property exists but cannot be loaded. */
+        UNLOADABLE_PROPERTY
+    }
+
+    private final Map<Problem, Long> counts = new EnumMap<Problem, Long>(Problem.class);
+
+    private final PrintWriter output;
+
+    /**
+     * @param file the report file, or {@code null} to only log the problems.
+     */
+    public ConsistencyReport(File file) throws IOException {
+        output = file == null ? null : new PrintWriter(file);
+        for (final Problem problem : Problem.values()) {
+            counts.put(problem, 0L);
+        }
+    }
+
+    /**
+     * @param problem the kind of problem.
+     * @param id the ID of the node or property that has the problem.
+     * @param detail a human readable description, e.g. containing the path.
+     */
+    public void report(Problem problem, ItemId id, String detail) {
+        counts.put(problem, counts.get(problem) + 1);
+        LOG.warn("{} {}: {}", new Object[]{problem, id, detail});
+        if (output != null) {
+            output.println(problem + " " + id + " " + detail);
+        }
+    }
+
+    public long getCount(Problem problem) {
+        return counts.get(problem);
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (final Long count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        LOG.info("Found {} problems: {}", getTotal(), counts);
+        if (output != null) {
+            output.flush();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Probabilistic set of all existing NodeIds, used to answer existence checks
+ * for IDs that definitely do not exist without accessing the persistence.
+ * <p/>
+ * The filter is a scalable Bloom filter: a chain of Bloom filters with growing
+ * capacities and shrinking false positive rates, so that it can be built from
+ * a single scan without knowing the number of nodes up front and still keeps
+ * the overall false positive rate below the configured one.
+ * <p/>
+ * The filter only knows the IDs it has been built from and the IDs added via
+ * {@link #put(NodeId)}, so a negative answer is only reliable as long as no
+ * other process adds nodes to the workspace.
+ */
+public class ExistenceFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExistenceFilter.class);
+
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    private static final Funnel<NodeId> NODE_ID_FUNNEL = new Funnel<NodeId>() {
+        @Override
+        public void funnel(NodeId id, PrimitiveSink into) {
+            into.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+        }
+    };
+
+    private final double falsePositiveRate;
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    public ExistenceFilter(double falsePositiveRate) {
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "False positive rate must be between 0 and 1");
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Builds a filter from a scan of all node IDs of the given PersistenceManager.
+     */
+    public static ExistenceFilter build(IterablePersistenceManager pm, double falsePositiveRate)
+            throws ItemStateException, RepositoryException {
+        final long startTime = System.currentTimeMillis();
+        final ExistenceFilter filter = new ExistenceFilter(falsePositiveRate);
+        long count = 0;
+        for (final NodeId id : pm.getAllNodeIds(null, 0)) {
+            filter.put(id);
+            count++;
+        }
+        LOG.info("Built existence filter of {} node IDs in {}ms", count, System.currentTimeMillis() - startTime);
+        return filter;
+    }
+
+    /**
+     * @return {@code false} if the node ID definitely does not exist.
+     */
+    public boolean mightContain(NodeId id) {
+        for (final Stage stage : stages) {
+            if (stage.filter.mightContain(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void put(NodeId id) {
+        Stage stage = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+        if (stage == null || stage.count >= stage.capacity) {
+            final int index = stages.size();
+            final int capacity = INITIAL_CAPACITY << Math.min(index, 10);
+            stage = new Stage(capacity, 0, BloomFilter.create(NODE_ID_FUNNEL, capacity,
+                    falsePositiveRate / (2L << index)));
+            stages.add(stage);
+        }
+        if (stage.filter.put(id)) {
+            stage.count++;
+        }
+    }
+
+    private static final class Stage {
+
+        private final int capacity;
+
+        private int count;
+
+        private final BloomFilter<NodeId> filter;
+
+        private Stage(int capacity, int count, BloomFilter<NodeId> filter) {
+            this.capacity = capacity;
+            this.count = count;
+            this.filter = filter;
+        }
+    }
+}
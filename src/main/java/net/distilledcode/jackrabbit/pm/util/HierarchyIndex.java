@@ -0,0 +1,527 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.IterablePersistenceManager;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Compact, read-only index of the node hierarchy of a workspace. For each
+ * node the index holds its ID, its parent, its name and its children, which
+ * allows resolving paths and enumerating subtrees without loading any bundles.
+ * <p/>
+ * The index is kept in primitive arrays (about 40 bytes per node) sorted by
+ * NodeId. It is built by {@link Builder} from a single scan in storage order
+ * and persisted to a file. Two fingerprints are used to detect whether the
+ * workspace changed since the index was built: one over all node IDs, which
+ * detects added and removed nodes from an ID scan, and one over the parent ID
+ * and the child node entries of all nodes, which detects moved, renamed and
+ * reordered nodes but requires reading all bundles once in storage order.
+ */
+public class HierarchyIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HierarchyIndex.class);
+
+    private static final int MAGIC = 0x504d4849; // "PMHI"
+
+    private static final int VERSION = 2;
+
+    private static final int NONE = -1;
+
+    private final long fingerprint;
+
+    private final long structureFingerprint;
+
+    private final long[] msbs;
+
+    private final long[] lsbs;
+
+    private final int[] parents;
+
+    private final int[] names;
+
+    private final int[] childStarts;
+
+    private final int[] childCounts;
+
+    private final int[] children;
+
+    private final String[] nameTable;
+
+    private final Map<String, Integer> nameLookup;
+
+    private HierarchyIndex(long fingerprint, long structureFingerprint, long[] msbs, long[] lsbs,
+                           int[] parents, int[] names, int[] childStarts, int[] childCounts, int[] children, String[] nameTable) {
+        this.fingerprint = fingerprint;
+        this.structureFingerprint = structureFingerprint;
+        this.msbs = msbs;
+        this.lsbs = lsbs;
+        this.parents = parents;
+        this.names = names;
+        this.childStarts = childStarts;
+        this.childCounts = childCounts;
+        this.children = children;
+        this.nameTable = nameTable;
+        this.nameLookup = new HashMap<String, Integer>(nameTable.length * 2);
+        for (int i = 0; i < nameTable.length; i++) {
+            nameLookup.put(nameTable[i], i);
+        }
+    }
+
+    public int getNodeCount() {
+        return msbs.length;
+    }
+
+    public boolean contains(NodeId id) {
+        return find(id) != NONE;
+    }
+
+    /**
+     * Resolves a path relative to the given node. Path segments are interpreted
+     * as names in the default namespace, like {@code AbstractCommand} does.
+     *
+     * @param startId the NodeId the path is relative to.
+     * @param relPath the relative path.
+     * @return the NodeId or {@code null} if no node exists at the path.
+     */
+    public NodeId resolve(NodeId startId, String relPath) {
+        checkArgument(!relPath.startsWith("/"), "Relative path expected", relPath);
+        int node = find(startId);
+        for (final String segment : relPath.split("/")) {
+            if (node == NONE) {
+                return null;
+            }
+            if (segment.length() > 0) {
+                final Integer name = nameLookup.get(NameFactoryImpl.getInstance().create("", segment).toString());
+                node = name == null ? NONE : findChild(node, name);
+            }
+        }
+        return node == NONE ? null : nodeId(node);
+    }
+
+    /**
+     * @return the IDs of the children of the given node, in the order of its child node entries.
+     */
+    public List<NodeId> getChildIds(NodeId id) {
+        final int node = find(id);
+        if (node == NONE) {
+            return new ArrayList<NodeId>();
+        }
+        final List<NodeId> childIds = new ArrayList<NodeId>(childCounts[node]);
+        for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+            childIds.add(nodeId(children[i]));
+        }
+        return childIds;
+    }
+
+    /**
+     * @return the local name of the given node, the empty string for the root node.
+     */
+    public String getName(NodeId id) {
+        final int node = find(id);
+        checkArgument(node != NONE, "Node ID %s is not indexed", id);
+        return localName(node);
+    }
+
+    /**
+     * @return the path of the given node, built from local names like {@code AbstractCommand.getPath}.
+     */
+    public String getPath(NodeId id) {
+        int node = find(id);
+        checkArgument(node != NONE, "Node ID %s is not indexed", id);
+        final StringBuilder path = new StringBuilder();
+        int depth = 0;
+        while (parents[node] != NONE) {
+            checkState(depth++ < msbs.length, "Cyclic parent relation at node ID %s", id);
+            path.insert(0, localName(node)).insert(0, '/');
+            node = parents[node];
+        }
+        return path.toString();
+    }
+
+    /**
+     * Counts each node once, even if it is listed by more than one parent.
+     *
+     * @return the number of nodes in the subtree rooted at the given node, including the node itself.
+     */
+    public long getSubtreeSize(NodeId id) {
+        final int node = find(id);
+        if (node == NONE) {
+            return 0;
+        }
+        final BitSet visited = new BitSet(msbs.length);
+        long size = 0;
+        int[] stack = new int[64];
+        int depth = 0;
+        stack[depth++] = node;
+        visited.set(node);
+        while (depth > 0) {
+            final int current = stack[--depth];
+            size++;
+            for (int i = childStarts[current]; i < childStarts[current] + childCounts[current]; i++) {
+                if (visited.get(children[i])) {
+                    continue;
+                }
+                visited.set(children[i]);
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = children[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Compares the index against the workspace. The node IDs are compared first,
+     * which only scans IDs. If they match, all bundles are read once in the order
+     * of {@code getAllNodeIds} to compare the parent IDs and child node entries.
+     *
+     * @return {@code true} if nodes have been added, removed, moved, renamed or
+     *         reordered since the index was built.
+     */
+    public boolean isStale(IterablePersistenceManager pm) throws ItemStateException, RepositoryException {
+        long count = 0;
+        long currentFingerprint = 0;
+        for (final NodeId id : pm.getAllNodeIds(null, 0)) {
+            count++;
+            currentFingerprint += fingerprint(id);
+        }
+        if (count != getNodeCount() || currentFingerprint != fingerprint) {
+            LOG.info("Hierarchy index is stale: {} nodes indexed, {} nodes in workspace", getNodeCount(), count);
+            return true;
+        }
+        LOG.info("Verifying the structure of {} indexed nodes", count);
+        long currentStructureFingerprint = 0;
+        for (final NodeId id : pm.getAllNodeIds(null, 0)) {
+            try {
+                currentStructureFingerprint += structureFingerprint(pm.load(id));
+            } catch (ItemStateException e) {
+                LOG.debug("Cannot load node ID {}, it is not indexed either", id);
+            }
+        }
+        if (currentStructureFingerprint != structureFingerprint) {
+            LOG.info("Hierarchy index is stale: nodes have been moved, renamed or reordered");
+            return true;
+        }
+        return false;
+    }
+
+    public void write(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeLong(structureFingerprint);
+            out.writeInt(nameTable.length);
+            for (final String name : nameTable) {
+                out.writeUTF(name);
+            }
+            out.writeInt(msbs.length);
+            for (int i = 0; i < msbs.length; i++) {
+                out.writeLong(msbs[i]);
+                out.writeLong(lsbs[i]);
+                out.writeInt(parents[i]);
+                out.writeInt(names[i]);
+                out.writeInt(childStarts[i]);
+                out.writeInt(childCounts[i]);
+            }
+            out.writeInt(children.length);
+            for (final int child : children) {
+                out.writeInt(child);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static HierarchyIndex read(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a hierarchy index file: " + file.getAbsolutePath());
+            }
+            final long fingerprint = in.readLong();
+            final long structureFingerprint = in.readLong();
+            final String[] nameTable = new String[in.readInt()];
+            for (int i = 0; i < nameTable.length; i++) {
+                nameTable[i] = in.readUTF();
+            }
+            final int nodeCount = in.readInt();
+            final long[] msbs = new long[nodeCount];
+            final long[] lsbs = new long[nodeCount];
+            final int[] parents = new int[nodeCount];
+            final int[] names = new int[nodeCount];
+            final int[] childStarts = new int[nodeCount];
+            final int[] childCounts = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                msbs[i] = in.readLong();
+                lsbs[i] = in.readLong();
+                parents[i] = in.readInt();
+                names[i] = in.readInt();
+                childStarts[i] = in.readInt();
+                childCounts[i] = in.readInt();
+            }
+            final int[] children = new int[in.readInt()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = in.readInt();
+            }
+            return new HierarchyIndex(fingerprint, structureFingerprint, msbs, lsbs, parents, names,
+                    childStarts, childCounts, children, nameTable);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String localName(int node) {
+        if (names[node] == NONE) {
+            return "";
+        }
+        final String name = nameTable[names[node]];
+        return name.substring(name.indexOf('}') + 1);
+    }
+
+    private int findChild(int node, int name) {
+        for (int i = childStarts[node]; i < childStarts[node] + childCounts[node]; i++) {
+            if (names[children[i]] == name) {
+                return children[i];
+            }
+        }
+        return NONE;
+    }
+
+    private int find(NodeId id) {
+        return find(msbs, lsbs, msbs.length, id);
+    }
+
+    private NodeId nodeId(int node) {
+        return new NodeId(msbs[node], lsbs[node]);
+    }
+
+    private static int find(long[] msbs, long[] lsbs, int length, NodeId id) {
+        if (id == null) {
+            return NONE;
+        }
+        final long msb = id.getMostSignificantBits();
+        final long lsb = id.getLeastSignificantBits();
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(msbs[mid], lsbs[mid], msb, lsb);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        if (msb1 != msb2) {
+            return msb1 < msb2 ? -1 : 1;
+        }
+        return lsb1 < lsb2 ? -1 : (lsb1 == lsb2 ? 0 : 1);
+    }
+
+    /**
+     * Order independent fingerprint contribution of a node ID, the fingerprint of a
+     * set of IDs is the sum of the contributions.
+     */
+    private static long fingerprint(NodeId id) {
+        return (id.getMostSignificantBits() * 0x9e3779b97f4a7c15L) ^ id.getLeastSignificantBits();
+    }
+
+    /**
+     * Fingerprint contribution of a NodeState, covering its ID, its parent ID and
+     * the IDs, names and order of its child node entries. NodeStates that cannot
+     * be loaded contribute nothing, neither when building nor when verifying.
+     */
+    private static long structureFingerprint(NodeState nodeState) {
+        long hash = fingerprint(nodeState.getNodeId());
+        if (nodeState.getParentId() != null) {
+            hash ^= Long.rotateLeft(fingerprint(nodeState.getParentId()), 17);
+        }
+        for (final ChildNodeEntry entry : nodeState.getChildNodeEntries()) {
+            hash = hash * 31 + (fingerprint(entry.getId()) ^ entry.getName().hashCode());
+        }
+        return hash * 0x9e3779b97f4a7c15L;
+    }
+
+    /**
+     * Builds a HierarchyIndex. All node IDs have to be added via {@link #addId(NodeId)}
+     * before the NodeStates are added via {@link #addNode(NodeState)}.
+     */
+    public static class Builder {
+
+        private long[] msbs = new long[1024];
+
+        private long[] lsbs = new long[1024];
+
+        private int nodeCount;
+
+        private int[] parents;
+
+        private int[] names;
+
+        private int[] childStarts;
+
+        private int[] childCounts;
+
+        private int[] children = new int[1024];
+
+        private int childrenLength;
+
+        private long fingerprint;
+
+        private long structureFingerprint;
+
+        private final List<String> nameTable = new ArrayList<String>();
+
+        private final Map<String, Integer> nameLookup = new HashMap<String, Integer>();
+
+        public void addId(NodeId id) {
+            checkState(parents == null, "All IDs must be added before the first node");
+            if (nodeCount == msbs.length) {
+                msbs = Arrays.copyOf(msbs, nodeCount * 2);
+                lsbs = Arrays.copyOf(lsbs, nodeCount * 2);
+            }
+            msbs[nodeCount] = id.getMostSignificantBits();
+            lsbs[nodeCount] = id.getLeastSignificantBits();
+            nodeCount++;
+            fingerprint += fingerprint(id);
+        }
+
+        public void addNode(NodeState nodeState) {
+            if (parents == null) {
+                prepareNodes();
+            }
+            final int node = find(msbs, lsbs, nodeCount, nodeState.getNodeId());
+            if (node == NONE) {
+                LOG.warn("Node ID {} was not returned by the ID scan, skipping", nodeState.getNodeId());
+                return;
+            }
+            structureFingerprint += structureFingerprint(nodeState);
+            parents[node] = find(msbs, lsbs, nodeCount, nodeState.getParentId());
+            childStarts[node] = childrenLength;
+            for (final ChildNodeEntry entry : nodeState.getChildNodeEntries()) {
+                final int child = find(msbs, lsbs, nodeCount, entry.getId());
+                if (child == NONE) {
+                    LOG.warn("Child node ID {} of {} does not exist", entry.getId(), nodeState.getNodeId());
+                    continue;
+                }
+                if (childrenLength == children.length) {
+                    children = Arrays.copyOf(children, childrenLength * 2);
+                }
+                children[childrenLength++] = child;
+                // for shared nodes the name given by the primary parent wins where possible
+                if (names[child] == NONE || parents[child] == node) {
+                    names[child] = nameIndex(entry.getName().toString());
+                }
+            }
+            childCounts[node] = childrenLength - childStarts[node];
+        }
+
+        public HierarchyIndex build() {
+            if (parents == null) {
+                prepareNodes();
+            }
+            return new HierarchyIndex(fingerprint, structureFingerprint, msbs, lsbs, parents, names,
+                    childStarts, childCounts, Arrays.copyOf(children, childrenLength),
+                    nameTable.toArray(new String[nameTable.size()]));
+        }
+
+        /**
+         * Sorts the collected IDs and allocates the per-node arrays.
+         */
+        private void prepareNodes() {
+            msbs = Arrays.copyOf(msbs, nodeCount);
+            lsbs = Arrays.copyOf(lsbs, nodeCount);
+            sort(0, nodeCount - 1);
+            parents = new int[nodeCount];
+            names = new int[nodeCount];
+            childStarts = new int[nodeCount];
+            childCounts = new int[nodeCount];
+            Arrays.fill(parents, NONE);
+            Arrays.fill(names, NONE);
+        }
+
+        private int nameIndex(String name) {
+            Integer index = nameLookup.get(name);
+            if (index == null) {
+                index = nameTable.size();
+                nameTable.add(name);
+                nameLookup.put(name, index);
+            }
+            return index;
+        }
+
+        /**
+         * Quicksort of the parallel msb/lsb arrays.
+         */
+        private void sort(int low, int high) {
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                final long pivotMsb = msbs[mid];
+                final long pivotLsb = lsbs[mid];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (compare(msbs[i], lsbs[i], pivotMsb, pivotLsb) < 0) {
+                        i++;
+                    }
+                    while (compare(msbs[j], lsbs[j], pivotMsb, pivotLsb) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller partition to bound the stack depth
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            final long msb = msbs[i];
+            final long lsb = lsbs[i];
+            msbs[i] = msbs[j];
+            lsbs[i] = lsbs[j];
+            msbs[j] = msb;
+            lsbs[j] = lsb;
+        }
+    }
+}
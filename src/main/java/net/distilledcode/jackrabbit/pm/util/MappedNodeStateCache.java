@@ -0,0 +1,373 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.Serializer;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Second level cache for NodeStates that keeps serialized NodeStates in
+ * memory-mapped segment files in a local scratch directory, i.e. outside
+ * of the Java heap.
+ * <p/>
+ * Segments are filled append-only. Once the configured size is exceeded,
+ * the oldest segment is dropped as a whole together with all entries it
+ * contains. Entries that are read from the older half of the segments are
+ * copied to the current segment, so that frequently accessed NodeStates (e.g.
+ * ancestors) survive the eviction of their segment. This approximates LRU
+ * eviction at the cost of some duplicated entries.
+ * <p/>
+ * {@link Serializer} does not write the shared set and the status of a NodeState,
+ * both are stored alongside the serialized NodeState and restored on access.
+ * <p/>
+ * The heap only holds a compact index of 24 bytes per slot. The
+ * index keeps at least 8/3 slots per entry and grows in powers of two, i.e.
+ * it takes between 64 and 128 bytes of heap per cached NodeState.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class MappedNodeStateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedNodeStateCache.class);
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+
+    private final int maxSegments;
+
+    private final Map<Integer, MappedByteBuffer> segments = new LinkedHashMap<Integer, MappedByteBuffer>();
+
+    private final Index index = new Index();
+
+    private int currentGeneration = -1;
+
+    private MappedByteBuffer currentSegment;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @param scratchDirectory directory in which a private directory for the segment files is created.
+     * @param maxSize maximum number of bytes kept in segment files.
+     */
+    public MappedNodeStateCache(File scratchDirectory, long maxSize) throws IOException {
+        checkArgument(maxSize >= SEGMENT_SIZE, "L2 cache size must be at least %s bytes", SEGMENT_SIZE);
+        this.directory = new File(scratchDirectory, "pm-l2-cache-" + System.currentTimeMillis());
+        if (!directory.mkdirs()) {
+            throw new IOException("Cannot create L2 cache directory " + directory.getAbsolutePath());
+        }
+        this.maxSegments = (int) (maxSize / SEGMENT_SIZE);
+        LOG.info("L2 cache of {} segments in {}", maxSegments, directory.getAbsolutePath());
+    }
+
+    /**
+     * Returns the cached NodeState with the given ID or {@code null} if it is not cached.
+     *
+     * @param id the NodeId.
+     * @param pm the PersistenceManager used to create the NodeState instance.
+     * @return the NodeState or {@code null}.
+     */
+    public NodeState get(NodeId id, PersistenceManager pm) {
+        final long location = index.get(id);
+        final MappedByteBuffer segment = location < 0 ? null : segments.get(generation(location));
+        if (segment == null) {
+            misses++;
+            return null;
+        }
+
+        final ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset(location));
+        final byte[] data = new byte[buffer.getInt()];
+        buffer.get(data);
+        try {
+            final NodeState state = pm.createNew(id);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final int status = in.readInt();
+            final int shareCount = in.readInt();
+            for (int i = 0; i < shareCount; i++) {
+                state.addShare(new NodeId(in.readLong(), in.readLong()));
+            }
+            Serializer.deserialize(state, in);
+            state.setStatus(status);
+            hits++;
+            if (isInOlderHalf(generation(location))) {
+                append(id, data);
+            }
+            return state;
+        } catch (Exception e) {
+            LOG.warn("Cannot deserialize cached node ID {}", id, e);
+            index.remove(id);
+            misses++;
+            return null;
+        }
+    }
+
+    public boolean contains(NodeId id) {
+        final long location = index.get(id);
+        return location >= 0 && segments.containsKey(generation(location));
+    }
+
+    public void put(NodeState state) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(state.getStatus());
+            out.writeInt(state.getSharedSet().size());
+            for (final NodeId parentId : state.getSharedSet()) {
+                out.writeLong(parentId.getMostSignificantBits());
+                out.writeLong(parentId.getLeastSignificantBits());
+            }
+            Serializer.serialize(state, out);
+            out.flush();
+        } catch (Exception e) {
+            LOG.warn("Cannot serialize node ID {}", state.getNodeId(), e);
+            return;
+        }
+        append(state.getNodeId(), bytes.toByteArray());
+    }
+
+    private void append(NodeId id, byte[] data) {
+        final int length = data.length + 4;
+        if (length > SEGMENT_SIZE) {
+            return;
+        }
+        try {
+            if (currentSegment == null || currentSegment.remaining() < length) {
+                nextSegment();
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot create L2 cache segment, node ID {} is not cached", id, e);
+            return;
+        }
+
+        final int offset = currentSegment.position();
+        currentSegment.putInt(data.length);
+        currentSegment.put(data);
+        index.put(id, location(currentGeneration, offset));
+    }
+
+    /**
+     * @return {@code true} if the segment is among the older half of the segments
+     *         that are kept, i.e. it is going to be evicted soon.
+     */
+    private boolean isInOlderHalf(int generation) {
+        return maxSegments > 1 && currentGeneration - generation >= maxSegments / 2;
+    }
+
+    public void invalidate(NodeId id) {
+        index.remove(id);
+    }
+
+    /**
+     * Drops all segments and deletes the scratch directory.
+     */
+    public void close() {
+        LOG.info("L2 cache: {} hits, {} misses, {} entries in {} segments",
+                new Object[]{hits, misses, index.size(), segments.size()});
+        final Iterator<Integer> generations = segments.keySet().iterator();
+        while (generations.hasNext()) {
+            final Integer generation = generations.next();
+            generations.remove();
+            deleteSegmentFile(generation);
+        }
+        currentSegment = null;
+        index.clear();
+        if (!directory.delete()) {
+            LOG.warn("Cannot delete L2 cache directory {}", directory.getAbsolutePath());
+            directory.deleteOnExit();
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        checkState(directory.isDirectory(), "L2 cache has been closed");
+        if (segments.size() >= maxSegments) {
+            final Iterator<Integer> generations = segments.keySet().iterator();
+            final Integer oldest = generations.next();
+            generations.remove();
+            deleteSegmentFile(oldest);
+            index.purge(segments.keySet());
+        }
+
+        final int generation = currentGeneration + 1;
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(generation), "rw");
+        try {
+            file.setLength(SEGMENT_SIZE);
+            currentSegment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            file.close();
+        }
+        currentGeneration = generation;
+        segments.put(generation, currentSegment);
+    }
+
+    /**
+     * Mapped buffers cannot be unmapped explicitly, the memory is released once
+     * they are garbage collected. Deleting the file works on POSIX systems even
+     * while it is still mapped.
+     */
+    private void deleteSegmentFile(int generation) {
+        final File file = segmentFile(generation);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private File segmentFile(int generation) {
+        return new File(directory, String.format("segment-%08d.bin", generation));
+    }
+
+    private static long location(int generation, int offset) {
+        return ((long) generation << 32) | offset;
+    }
+
+    private static int generation(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Open addressing hash table from NodeId to segment location stored in
+     * primitive arrays. Removed entries keep their key and are marked with a
+     * negative location until the table is rebuilt.
+     */
+    private static final class Index {
+
+        private static final long EMPTY = -1;
+
+        private static final long REMOVED = -2;
+
+        private long[] msbs = new long[1024];
+
+        private long[] lsbs = new long[1024];
+
+        private long[] locations = newLocations(1024);
+
+        private int used;
+
+        long get(NodeId id) {
+            final int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            return locations[slot];
+        }
+
+        void put(NodeId id, long location) {
+            if (used + 1 > locations.length * 3 / 4) {
+                rebuild(null);
+            }
+            final int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (locations[slot] == EMPTY) {
+                used++;
+                msbs[slot] = id.getMostSignificantBits();
+                lsbs[slot] = id.getLeastSignificantBits();
+            }
+            locations[slot] = location;
+        }
+
+        void remove(NodeId id) {
+            final int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (locations[slot] != EMPTY) {
+                locations[slot] = REMOVED;
+            }
+        }
+
+        /**
+         * Drops all entries that do not point into one of the given segments.
+         */
+        void purge(Iterable<Integer> liveGenerations) {
+            rebuild(liveGenerations);
+        }
+
+        int size() {
+            int size = 0;
+            for (final long location : locations) {
+                if (location >= 0) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(locations, EMPTY);
+            used = 0;
+        }
+
+        private int find(long msb, long lsb) {
+            final int mask = locations.length - 1;
+            int slot = (int) ((msb ^ lsb) ^ ((msb ^ lsb) >>> 32)) & mask;
+            while (locations[slot] != EMPTY && (msbs[slot] != msb || lsbs[slot] != lsb)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rebuild(Iterable<Integer> liveGenerations) {
+            int minGeneration = Integer.MIN_VALUE;
+            if (liveGenerations != null) {
+                minGeneration = Integer.MAX_VALUE;
+                for (final Integer generation : liveGenerations) {
+                    minGeneration = Math.min(minGeneration, generation);
+                }
+            }
+
+            final long[] oldMsbs = msbs;
+            final long[] oldLsbs = lsbs;
+            final long[] oldLocations = locations;
+            int live = 0;
+            for (final long location : oldLocations) {
+                if (location >= 0 && generation(location) >= minGeneration) {
+                    live++;
+                }
+            }
+
+            int capacity = 1024;
+            while (capacity * 3 / 4 < 2 * live) {
+                capacity <<= 1;
+            }
+            msbs = new long[capacity];
+            lsbs = new long[capacity];
+            locations = newLocations(capacity);
+            used = 0;
+            for (int i = 0; i < oldLocations.length; i++) {
+                if (oldLocations[i] >= 0 && generation(oldLocations[i]) >= minGeneration) {
+                    final int slot = find(oldMsbs[i], oldLsbs[i]);
+                    msbs[slot] = oldMsbs[i];
+                    lsbs[slot] = oldLsbs[i];
+                    locations[slot] = oldLocations[i];
+                    used++;
+                }
+            }
+        }
+
+        private static long[] newLocations(int capacity) {
+            final long[] locations = new long[capacity];
+            Arrays.fill(locations, EMPTY);
+            return locations;
+        }
+    }
+}
@@ -39,17 +39,124 @@ public class PMExecutionContext {
 
     private PersistenceManager persistenceManager;
 
-    private PMExecutionContext(PersistenceManager persistenceManager) {
+    private final File workspaceHome;
+
+    private CachingPersistenceManager cachingPersistenceManager;
+
+    private int prefetchDepth;
+
+    private int prefetchThreads;
+
+    private File secondLevelCacheDirectory;
+
+    private long secondLevelCacheSize;
+
+    private MappedNodeStateCache secondLevelCache;
+
+    private double existenceFilterFpp;
+
+    private File hierarchyIndexFile;
+
+    private HierarchyIndex hierarchyIndex;
+
+    private final CommandMetrics metrics = new CommandMetrics();
+
+    private PMExecutionContext(PersistenceManager persistenceManager, File workspaceHome) {
         this.persistenceManager = persistenceManager;
+        this.workspaceHome = workspaceHome;
+    }
+
+    /**
+     * Enables asynchronous prefetching of child NodeStates in the
+     * {@link CachingPersistenceManager}. Must be called before the
+     * CachingPersistenceManager is first requested.
+     *
+     * @param depth maximum number of NodeStates loaded ahead, 0 disables prefetching.
+     * @param threads number of I/O threads used for prefetching.
+     */
+    public void setPrefetch(int depth, int threads) {
+        checkState(cachingPersistenceManager == null, "CachingPersistenceManager already created");
+        this.prefetchDepth = depth;
+        this.prefetchThreads = threads;
     }
 
     public PersistenceManager getPersistenceManager() {
         return persistenceManager;
     }
 
-    public CachingPersistenceManager getCachingPersistenceManager() {
+    public File getWorkspaceHome() {
+        return workspaceHome;
+    }
+
+    public CommandMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables the memory-mapped second level cache of the {@link CachingPersistenceManager}.
+     * Must be called before the CachingPersistenceManager is first requested.
+     *
+     * @param scratchDirectory local directory for the cache files, {@code null} disables the cache.
+     * @param maxSize maximum size of the cache files in bytes.
+     */
+    public void setSecondLevelCache(File scratchDirectory, long maxSize) {
+        checkState(cachingPersistenceManager == null, "CachingPersistenceManager already created");
+        this.secondLevelCacheDirectory = scratchDirectory;
+        this.secondLevelCacheSize = maxSize;
+    }
+
+    /**
+     * Enables the {@link ExistenceFilter} of the {@link CachingPersistenceManager}.
+     * Must be called before the CachingPersistenceManager is first requested.
+     *
+     * @param falsePositiveRate the false positive rate of the filter, 0 disables the filter.
+     */
+    public void setExistenceFilter(double falsePositiveRate) {
+        checkState(cachingPersistenceManager == null, "CachingPersistenceManager already created");
+        this.existenceFilterFpp = falsePositiveRate;
+    }
+
+    public void setHierarchyIndexFile(File hierarchyIndexFile) {
+        this.hierarchyIndexFile = hierarchyIndexFile;
+    }
+
+    /**
+     * Returns the {@link HierarchyIndex} configured for this context. The index is
+     * loaded and checked against the workspace on first access.
+     *
+     * @return the HierarchyIndex or {@code null} if none is configured or it is stale.
+     */
+    public HierarchyIndex getHierarchyIndex() throws Exception {
+        if (hierarchyIndex == null && hierarchyIndexFile != null) {
+            checkState(getPersistenceManager() instanceof IterablePersistenceManager, "IterablePersistenceManager required");
+            final HierarchyIndex index = HierarchyIndex.read(hierarchyIndexFile);
+            if (index.isStale((IterablePersistenceManager) getPersistenceManager())) {
+                LOG.warn("Ignoring stale hierarchy index {}", hierarchyIndexFile.getAbsolutePath());
+            } else {
+                LOG.info("Using hierarchy index {} of {} nodes", hierarchyIndexFile.getAbsolutePath(), index.getNodeCount());
+                hierarchyIndex = index;
+            }
+            hierarchyIndexFile = null;
+        }
+        return hierarchyIndex;
+    }
+
+    public CachingPersistenceManager getCachingPersistenceManager() throws Exception {
         checkState(getPersistenceManager() instanceof IterablePersistenceManager, "IterablePersistenceManager required");
-        return new CachingPersistenceManager((IterablePersistenceManager) getPersistenceManager(), 1000);
+        if (cachingPersistenceManager == null) {
+            cachingPersistenceManager = new CachingPersistenceManager(
+                    (IterablePersistenceManager) getPersistenceManager(), 1000, prefetchDepth, prefetchThreads);
+            if (secondLevelCacheDirectory != null) {
+                secondLevelCache = new MappedNodeStateCache(secondLevelCacheDirectory, secondLevelCacheSize);
+                cachingPersistenceManager.setSecondLevelCache(secondLevelCache);
+            }
+            if (existenceFilterFpp > 0) {
+                cachingPersistenceManager.setExistenceFilter(ExistenceFilter.build(
+                        (IterablePersistenceManager) getPersistenceManager(), existenceFilterFpp));
+            }
+            metrics.setCachingPersistenceManager(cachingPersistenceManager);
+        }
+        return cachingPersistenceManager;
     }
 
     public static PMExecutionContext create(final String repoHome, final String workspaceName) throws Exception {
@@ -76,10 +183,17 @@ public class PMExecutionContext {
         final File homeDir = new File(workspaceHome);
         initPM(persistenceManager, homeDir, workspaceConfig.getFileSystem(), namespaceRegistry);
 
-        return new PMExecutionContext(persistenceManager);
+        return new PMExecutionContext(persistenceManager, homeDir);
     }
 
     public void dispose() throws Exception {
+        metrics.close();
+        if (cachingPersistenceManager != null) {
+            cachingPersistenceManager.shutdown();
+        }
+        if (secondLevelCache != null) {
+            secondLevelCache.close();
+        }
         persistenceManager.close();
     }
 
@@ -0,0 +1,141 @@
+package net.distilledcode.jackrabbit.pm.util;
+
+import com.google.common.collect.AbstractIterator;
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * Plain text file of repairs planned by a consistency check. Each line holds
+ * one repair: the repair type followed by the IDs of the affected nodes, e.g.
+ * <pre>
+ * remove-child-entry &lt;parent id&gt; &lt;child id&gt;
+ * </pre>
+ * Lines starting with {@code #} are comments.
+ */
+public class RepairPlan {
+
+    public static final String REMOVE_CHILD_ENTRY = "remove-child-entry";
+
+    private RepairPlan() {
+    }
+
+    public static Writer createWriter(File file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * Streams the repairs in the given plan file. The file is closed once all
+     * repairs have been read.
+     */
+    public static Iterator<Repair> read(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        return new AbstractIterator<Repair>() {
+            private int lineNumber;
+
+            @Override
+            protected Repair computeNext() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+                        line = line.trim();
+                        if (line.length() > 0 && !line.startsWith("#")) {
+                            return parse(line, lineNumber);
+                        }
+                    }
+                    reader.close();
+                    return endOfData();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read repair plan", e);
+                }
+            }
+        };
+    }
+
+    private static Repair parse(String line, int lineNumber) {
+        final String[] fields = line.split("\\s+");
+        if (fields.length != 3 || !REMOVE_CHILD_ENTRY.equals(fields[0])) {
+            throw new IllegalArgumentException("Invalid repair in line " + lineNumber + ": " + line);
+        }
+        return new Repair(fields[0], new NodeId(fields[1]), new NodeId(fields[2]));
+    }
+
+    /**
+     * A single planned repair.
+     */
+    public static class Repair {
+
+        private final String type;
+
+        private final NodeId nodeId;
+
+        private final NodeId targetId;
+
+        private Repair(String type, NodeId nodeId, NodeId targetId) {
+            this.type = type;
+            this.nodeId = nodeId;
+            this.targetId = targetId;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the ID of the node to modify.
+         */
+        public NodeId getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * @return the ID of the node the repair refers to, e.g. the child whose entry is removed.
+         */
+        public NodeId getTargetId() {
+            return targetId;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + nodeId + " " + targetId;
+        }
+    }
+
+    /**
+     * Writes repairs to a plan file.
+     */
+    public static class Writer implements Closeable {
+
+        private final PrintWriter output;
+
+        private long count;
+
+        private Writer(File file) throws IOException {
+            output = new PrintWriter(file);
+            output.println("# repair plan created " + new Date());
+        }
+
+        public void removeChildNodeEntry(NodeId parentId, NodeId childId) {
+            output.println(new Repair(REMOVE_CHILD_ENTRY, parentId, childId));
+            count++;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() {
+            output.flush();
+            output.close();
+        }
+    }
+}